@@ -0,0 +1,57 @@
+package com.hmdp.config;
+
+import com.hmdp.service.IShopService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+
+/**
+ * 启动时缓存预热，并加载店铺的本地空间索引
+ * ApplicationRunner执行完毕后Spring Boot才会把就绪状态切换为ACCEPTING_TRAFFIC，
+ * 所以预热完成之前实例不会被负载均衡(readiness探针)接入流量
+ */
+@Slf4j
+@Component
+public class CacheWarmUpRunner implements ApplicationRunner {
+
+    @Resource
+    private IShopService shopService;
+
+    @Value("${hmdp.cache.warm-up.enabled:true}")
+    private boolean enabled;
+
+    @Value("${hmdp.cache.warm-up.shop-top-n:1000}")
+    private int shopTopN;
+
+    public void run(ApplicationArguments args) {
+        loadShopGeoIndex();
+        if (!enabled) {
+            return;
+        }
+        long begin = System.currentTimeMillis();
+        try {
+            int warmed = shopService.warmUpShopCache(shopTopN);
+            log.info("店铺缓存预热完成，数量:{}，耗时:{}ms", warmed, System.currentTimeMillis() - begin);
+        } catch (Exception e) {
+            //预热失败不影响启动，未预热的key在首次访问时加锁回源数据库并写入(CacheClient.loadOnMiss)
+            log.error("店铺缓存预热失败", e);
+        }
+    }
+
+    /**
+     * 加载店铺的本地空间索引，失败时附近商铺查询使用redis的GEO索引
+     */
+    private void loadShopGeoIndex() {
+        long begin = System.currentTimeMillis();
+        try {
+            int loaded = shopService.loadShopGeoIndex();
+            log.info("店铺空间索引加载完成，数量:{}，耗时:{}ms", loaded, System.currentTimeMillis() - begin);
+        } catch (Exception e) {
+            log.error("店铺空间索引加载失败", e);
+        }
+    }
+}
@@ -1,14 +1,20 @@
 package com.hmdp.config;
 
+import cn.hutool.core.util.StrUtil;
+import com.hmdp.utils.AdminInterceptor;
 import com.hmdp.utils.LoginInterceptor;
+import com.hmdp.utils.RedisHealthDetector;
 import com.hmdp.utils.RefreshTokenInterceptor;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
 
 import javax.annotation.Resource;
+import java.util.Set;
+import java.util.stream.Collectors;
 
 @Configuration
 public class MvcConfig implements WebMvcConfigurer {
@@ -16,6 +22,12 @@ public class MvcConfig implements WebMvcConfigurer {
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private RedisHealthDetector redisHealthDetector;
+
+    @Value("${hmdp.admin.user-ids:}")
+    private String adminUserIds;
+
     public void addInterceptors(InterceptorRegistry registry) {
         //登录拦截器
         registry.addInterceptor(new LoginInterceptor())
@@ -30,9 +42,19 @@ public class MvcConfig implements WebMvcConfigurer {
                         "/shop-type/**"
                 )
                 .order(1);
+        //管理员拦截器：运维接口只允许配置的管理员调用
+        registry.addInterceptor(new AdminInterceptor(parseUserIds(adminUserIds)))
+                .addPathPatterns("/cache/**")
+                .order(2);
         //token刷新拦截器
-        registry.addInterceptor(new RefreshTokenInterceptor(stringRedisTemplate))
+        registry.addInterceptor(new RefreshTokenInterceptor(stringRedisTemplate, redisHealthDetector))
                 .addPathPatterns("/**")
                 .order(0);
     }
+
+    private static Set<Long> parseUserIds(String userIds) {
+        return StrUtil.split(userIds, ',', true, true).stream()
+                .map(Long::valueOf)
+                .collect(Collectors.toSet());
+    }
 }
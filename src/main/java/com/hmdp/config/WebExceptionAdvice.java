@@ -1,6 +1,8 @@
 package com.hmdp.config;
 
 import com.hmdp.dto.Result;
+import com.hmdp.utils.DbFallbackRejectedException;
+import com.hmdp.utils.RedisUnavailableException;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.web.bind.annotation.ExceptionHandler;
 import org.springframework.web.bind.annotation.RestControllerAdvice;
@@ -9,6 +11,18 @@ import org.springframework.web.bind.annotation.RestControllerAdvice;
 @RestControllerAdvice
 public class WebExceptionAdvice {
 
+    @ExceptionHandler(DbFallbackRejectedException.class)
+    public Result handleDbFallbackRejectedException(DbFallbackRejectedException e) {
+        log.warn(e.getMessage());
+        return Result.fail("服务繁忙，请稍后重试");
+    }
+
+    @ExceptionHandler(RedisUnavailableException.class)
+    public Result handleRedisUnavailableException(RedisUnavailableException e) {
+        log.warn(e.getMessage());
+        return Result.fail("服务繁忙，请稍后重试");
+    }
+
     @ExceptionHandler(RuntimeException.class)
     public Result handleRuntimeException(RuntimeException e) {
         log.error(e.toString(), e);
@@ -0,0 +1,142 @@
+package com.hmdp.controller;
+
+
+import com.hmdp.dto.KeyspaceReport;
+import com.hmdp.dto.Result;
+import com.hmdp.service.IShopService;
+import com.hmdp.service.IShopTypeService;
+import com.hmdp.utils.CachePrefixInvalidator;
+import com.hmdp.utils.HotKeyDetector;
+import com.hmdp.utils.KeyspaceAuditor;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.web.bind.annotation.*;
+
+import javax.annotation.Resource;
+import java.util.Map;
+
+/**
+ * <p>
+ * 缓存管理控制器，只允许hmdp.admin.user-ids中配置的管理员调用(AdminInterceptor)
+ * </p>
+ */
+@RestController
+@RequestMapping("/cache")
+public class CacheController {
+
+    private static final String CACHE_KEY_PREFIX = "cache:";
+
+    @Resource
+    private IShopService shopService;
+
+    @Resource
+    private IShopTypeService shopTypeService;
+
+    @Resource
+    private HotKeyDetector hotKeyDetector;
+
+    @Resource
+    private CachePrefixInvalidator cachePrefixInvalidator;
+
+    @Resource
+    private KeyspaceAuditor keyspaceAuditor;
+
+    @Value("${hmdp.cache.warm-up.shop-top-n:1000}")
+    private int shopTopN;
+
+    /**
+     * 手动触发店铺缓存预热
+     * @param topN 预热的店铺数量，默认取配置值，不超过配置值
+     * @return 实际预热的店铺数量
+     */
+    @PostMapping("/warm-up/shop")
+    public Result warmUpShop(@RequestParam(value = "topN", required = false) Integer topN) {
+        if (topN != null && topN <= 0) {
+            return Result.fail("预热数量必须大于0");
+        }
+        return Result.ok(shopService.warmUpShopCache(topN == null ? shopTopN : Math.min(topN, shopTopN)));
+    }
+
+    /**
+     * 全量重建redis的店铺GEO索引(流式分批，完成后原子替换)
+     * @return 写入的店铺数量
+     */
+    @PostMapping("/shop-geo/rebuild")
+    public Result rebuildShopGeo() {
+        return shopService.rebuildShopGeo();
+    }
+
+    /**
+     * 查询当前探测到的热点key
+     * @return 热点key及估计访问次数，按访问次数降序
+     */
+    @GetMapping("/hot-keys")
+    public Result queryHotKeys() {
+        return Result.ok(hotKeyDetector.getHotKeys());
+    }
+
+    /**
+     * 商铺类型变更后通知所有实例刷新类型快照
+     * @return 无
+     */
+    @PostMapping("/shop-type/refresh")
+    public Result refreshShopType() {
+        shopTypeService.notifyTypeChanged();
+        return Result.ok();
+    }
+
+    /**
+     * 按前缀批量失效缓存，例如批量修复店铺数据后失效 cache:shop:
+     * 后台分批限速执行，通过返回的任务id查询进度
+     * @param prefix 缓存key前缀，只允许cache:开头
+     * @param publishLocal 是否通知所有实例删除本地副本
+     * @return 任务id
+     */
+    @PostMapping("/invalidate")
+    public Result invalidatePrefix(@RequestParam("prefix") String prefix,
+                                   @RequestParam(value = "publishLocal", defaultValue = "true") Boolean publishLocal) {
+        //只允许失效缓存，防止误删秒杀库存、feed等业务数据
+        if (!prefix.startsWith(CACHE_KEY_PREFIX) || prefix.length() <= CACHE_KEY_PREFIX.length()) {
+            return Result.fail("只允许失效cache:开头的缓存前缀");
+        }
+        return Result.ok(cachePrefixInvalidator.submit(prefix, publishLocal));
+    }
+
+    /**
+     * 查询批量失效任务的进度
+     * @param jobId 任务id
+     * @return 任务状态、游标、已删除数量等
+     */
+    @GetMapping("/invalidate/{jobId}")
+    public Result queryInvalidateProgress(@PathVariable("jobId") String jobId) {
+        Map<Object, Object> progress = cachePrefixInvalidator.getProgress(jobId);
+        if (progress.isEmpty()) {
+            return Result.fail("任务不存在或已过期");
+        }
+        return Result.ok(progress);
+    }
+
+    /**
+     * 查询最近一次的redis键空间审计报告
+     * @return 按前缀汇总的key数量、内存占用、过期时间、编码等
+     */
+    @GetMapping("/keyspace")
+    public Result queryKeyspaceReport() {
+        KeyspaceReport report = keyspaceAuditor.getReport();
+        if (report == null) {
+            return Result.fail("尚未完成键空间审计");
+        }
+        return Result.ok(report);
+    }
+
+    /**
+     * 手动触发一次redis键空间审计，后台执行
+     * @return 无
+     */
+    @PostMapping("/keyspace/audit")
+    public Result auditKeyspace() {
+        if (!keyspaceAuditor.submit()) {
+            return Result.fail("键空间审计正在执行");
+        }
+        return Result.ok();
+    }
+}
@@ -6,7 +6,10 @@ import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
 import com.hmdp.service.IShopService;
+import com.hmdp.utils.MicroCache;
 import com.hmdp.utils.SystemConstants;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
 import javax.annotation.Resource;
@@ -32,8 +35,15 @@ public class ShopController {
      * @return 商铺详情数据
      */
     @GetMapping("/{id}")
-    public Result queryShopById(@PathVariable("id") Long id) {
-        return shopService.queryById(id);
+    public ResponseEntity<?> queryShopById(@PathVariable("id") Long id) {
+        //缓存中存的是已渲染好的店铺JSON，直接套上Result外壳输出，不再反序列化和序列化
+        String shopJson = shopService.queryRenderedById(id);
+        if (shopJson == null) {
+            return ResponseEntity.ok(Result.fail("店铺不存在"));
+        }
+        return ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_JSON)
+                .body(Result.okRendered(shopJson));
     }
 
     /**
@@ -43,10 +53,8 @@ public class ShopController {
      */
     @PostMapping
     public Result saveShop(@RequestBody Shop shop) {
-        // 写入数据库
-        shopService.save(shop);
-        // 返回店铺id
-        return Result.ok(shop.getId());
+        // 写入数据库，同步空间索引
+        return shopService.saveShop(shop);
     }
 
     /**
@@ -64,19 +72,37 @@ public class ShopController {
      * 根据商铺类型分页查询商铺信息
      * @param typeId 商铺类型
      * @param current 页码
+     * @param x 经度，传入坐标时按距离排序
+     * @param y 纬度
      * @return 商铺列表
      */
+    @MicroCache(bypassParams = {"x", "y"})
     @GetMapping("/of/type")
     public Result queryShopByType(
             @RequestParam("typeId") Integer typeId,
-            @RequestParam(value = "current", defaultValue = "1") Integer current
+            @RequestParam(value = "current", defaultValue = "1") Integer current,
+            @RequestParam(value = "x", required = false) Double x,
+            @RequestParam(value = "y", required = false) Double y
     ) {
-        // 根据类型分页查询
-        Page<Shop> page = shopService.query()
-                .eq("type_id", typeId)
-                .page(new Page<>(current, SystemConstants.DEFAULT_PAGE_SIZE));
-        // 返回数据
-        return Result.ok(page.getRecords());
+        return shopService.queryShopByType(typeId, current, x, y);
+    }
+
+    /**
+     * 按距离由近到远滚动查询附近的商铺
+     * @param typeId 商铺类型
+     * @param x 经度
+     * @param y 纬度
+     * @param cursor 上一页返回的游标，第一页不传
+     * @return 商铺列表和下一页的游标
+     */
+    @GetMapping("/of/type/scroll")
+    public Result queryShopByTypeScroll(
+            @RequestParam("typeId") Integer typeId,
+            @RequestParam("x") Double x,
+            @RequestParam("y") Double y,
+            @RequestParam(value = "cursor", required = false) String cursor
+    ) {
+        return shopService.queryShopByTypeScroll(typeId, x, y, cursor);
     }
 
     /**
@@ -85,6 +111,7 @@ public class ShopController {
      * @param current 页码
      * @return 商铺列表
      */
+    @MicroCache
     @GetMapping("/of/name")
     public Result queryShopByName(
             @RequestParam(value = "name", required = false) String name,
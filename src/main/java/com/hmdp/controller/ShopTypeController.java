@@ -1,15 +1,16 @@
 package com.hmdp.controller;
 
 
-import com.hmdp.dto.Result;
-import com.hmdp.entity.ShopType;
+import com.hmdp.dto.ShopTypeSnapshot;
 import com.hmdp.service.IShopTypeService;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.WebRequest;
 
 import javax.annotation.Resource;
-import java.util.List;
 
 /**
  * <p>
@@ -26,11 +27,19 @@ public class ShopTypeController {
     private IShopTypeService typeService;
 
     /**
-     * 查询所有商铺类型(添加redis缓存)
-     * @return 商铺类型列表
+     * 查询所有商铺类型(内存快照，支持ETag/If-None-Match)
+     * @return 商铺类型列表，客户端缓存未过期时返回304
      */
     @GetMapping("list")
-    public Result queryTypeList() {
-        return typeService.queryTypeList();
+    public ResponseEntity<byte[]> queryTypeList(WebRequest request) {
+        ShopTypeSnapshot snapshot = typeService.getTypeSnapshot();
+        if (request.checkNotModified(snapshot.getEtag())) {
+            //ETag一致，已经设置304，不需要响应体
+            return null;
+        }
+        return ResponseEntity.ok()
+                .eTag(snapshot.getEtag())
+                .contentType(MediaType.APPLICATION_JSON)
+                .body(snapshot.getBody());
     }
 }
@@ -0,0 +1,11 @@
+package com.hmdp.dto;
+
+import lombok.Data;
+
+import java.util.List;
+
+@Data
+public class GeoScrollResult {
+    private List<?> list;
+    private String cursor;
+}
@@ -0,0 +1,49 @@
+package com.hmdp.dto;
+
+import lombok.Data;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * redis键空间审计报告
+ */
+@Data
+public class KeyspaceReport {
+    //审计开始、结束时间(毫秒时间戳)
+    private Long startTime;
+    private Long finishTime;
+    //审计开始时的key总数
+    private Long dbSize;
+    //实际扫描的key数量
+    private Long scannedKeys;
+    //是否扫描完整个键空间，未扫描完时按 dbSize / scannedKeys 估算
+    private Boolean complete;
+    //估算系数
+    private Double scale;
+    //按前缀汇总，按内存占用降序
+    private List<PrefixStats> prefixes;
+
+    @Data
+    public static class PrefixStats {
+        private String prefix;
+        private Long keys = 0L;
+        //没有设置过期时间的key数量
+        private Long noTtlKeys = 0L;
+        //内存占用(字节)
+        private Long memoryBytes = 0L;
+        //单个key最大的内存占用及对应的key
+        private Long maxMemoryBytes = 0L;
+        private String biggestKey;
+        //元素数量(string为长度)
+        private Long totalCardinality = 0L;
+        private Long maxCardinality = 0L;
+        //类型、编码分布
+        private Map<String, Long> types = new HashMap<>();
+        private Map<String, Long> encodings = new HashMap<>();
+        //按估算系数放大后的key数量和内存占用
+        private Long estimatedKeys = 0L;
+        private Long estimatedMemoryBytes = 0L;
+    }
+}
@@ -4,6 +4,7 @@ import lombok.AllArgsConstructor;
 import lombok.Data;
 import lombok.NoArgsConstructor;
 
+import java.nio.charset.StandardCharsets;
 import java.util.List;
 
 @Data
@@ -24,6 +25,14 @@ public class Result {
     public static Result ok(List<?> data, Long total){
         return new Result(true, null, data, total);
     }
+    /**
+     * 直接拼接已渲染好的data，结果与Result.ok(data)经Jackson序列化一致(非空字段才输出)
+     * @param dataJson 已渲染好的data JSON
+     * @return 响应体字节
+     */
+    public static byte[] okRendered(String dataJson){
+        return ("{\"success\":true,\"data\":" + dataJson + "}").getBytes(StandardCharsets.UTF_8);
+    }
     public static Result fail(String errorMsg){
         return new Result(false, errorMsg, null, null);
     }
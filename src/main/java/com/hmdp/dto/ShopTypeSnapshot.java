@@ -0,0 +1,32 @@
+package com.hmdp.dto;
+
+import com.hmdp.entity.ShopType;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.util.List;
+
+/**
+ * 商铺类型列表的不可变快照
+ * body是已经序列化好的Result响应体，每次请求直接写出，不再解析和序列化
+ */
+@Getter
+@AllArgsConstructor
+public class ShopTypeSnapshot {
+    /**
+     * 版本号，每次类型变更通知后递增
+     */
+    private final long version;
+    /**
+     * 按sort排序的类型列表(只读)
+     */
+    private final List<ShopType> types;
+    /**
+     * 序列化好的响应体
+     */
+    private final byte[] body;
+    /**
+     * 响应体对应的ETag
+     */
+    private final String etag;
+}
@@ -2,6 +2,11 @@ package com.hmdp.mapper;
 
 import com.hmdp.entity.Blog;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import org.apache.ibatis.annotations.Param;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
 
 /**
  * <p>
@@ -13,4 +18,36 @@ import com.baomidou.mybatisplus.core.mapper.BaseMapper;
  */
 public interface BlogMapper extends BaseMapper<Blog> {
 
+    /**
+     * 批量累加点赞数，一条UPDATE ... CASE id WHEN ... 语句更新多篇笔记
+     * @param deltas 笔记id -> 点赞数增量
+     * @return 更新的行数
+     */
+    int incrLikedBatch(@Param("deltas") Map<Long, Long> deltas);
+
+    /**
+     * 查询笔记的点赞数，以及是否已在指定批次中写回(flushing中的增量已经包含在点赞数中)
+     * @param ids 笔记id
+     * @param flushIds 各分片正在写回的批次id
+     * @return 每篇笔记一行：id、liked、flushed(1表示已写回)，不存在的笔记没有对应的行
+     */
+    List<Map<String, Object>> selectLikedWithFlushed(@Param("ids") Collection<Long> ids, @Param("flushIds") Collection<String> flushIds);
+
+    /**
+     * 查询本批次中已经写回过的笔记
+     * @param flushId 写回批次id
+     * @param blogIds 笔记id
+     * @return 已写回的笔记id
+     */
+    List<Long> selectFlushedBlogIds(@Param("flushId") String flushId, @Param("blogIds") Collection<Long> blogIds);
+
+    /**
+     * 记录本批次已写回的笔记，与incrLikedBatch在同一个事务中
+     */
+    int insertFlushRecords(@Param("flushId") String flushId, @Param("blogIds") Collection<Long> blogIds);
+
+    /**
+     * 批次全部写回后删除记录
+     */
+    int deleteFlushRecords(@Param("flushId") String flushId);
 }
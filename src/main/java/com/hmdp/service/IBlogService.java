@@ -4,6 +4,8 @@ import com.hmdp.dto.Result;
 import com.hmdp.entity.Blog;
 import com.baomidou.mybatisplus.extension.service.IService;
 
+import java.util.Map;
+
 /**
  * <p>
  *  服务类
@@ -56,4 +58,12 @@ public interface IBlogService extends IService<Blog> {
      * @return
      */
     Result queryBlogOfFollow(Long max, Integer offset);
+
+    /**
+     * 写回一批点赞数增量(幂等)
+     * @param flushId 写回批次id
+     * @param deltas 笔记id -> 点赞数增量
+     * @return 本次实际写回的笔记数量
+     */
+    int flushLikedBatch(String flushId, Map<Long, Long> deltas);
 }
@@ -35,4 +35,11 @@ public interface IFollowService extends IService<Follow> {
      * @return
      */
     Result followCommons(Long id);
+
+    /**
+     * 查询作者的粉丝数(redis计数，不存在时从数据库统计)
+     * @param authorId 作者id
+     * @return 粉丝数
+     */
+    long countFans(Long authorId);
 }
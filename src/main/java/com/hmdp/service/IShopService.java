@@ -21,10 +21,63 @@ public interface IShopService extends IService<Shop> {
      */
     Result queryById(Long id);
 
+    /**
+     * 根据id查询已渲染好的商铺JSON，命中缓存时不做反序列化
+     * @param id 商铺id
+     * @return 商铺JSON，不存在时返回null
+     */
+    String queryRenderedById(Long id);
+
+    /**
+     * 根据商铺类型分页查询商铺信息，传入坐标时按距离由近到远排序
+     * @param typeId 商铺类型
+     * @param current 页码
+     * @param x 经度，可选
+     * @param y 纬度，可选
+     * @return 商铺列表
+     */
+    Result queryShopByType(Integer typeId, Integer current, Double x, Double y);
+
+    /**
+     * 按距离由近到远滚动查询附近的商铺
+     * @param typeId 商铺类型
+     * @param x 经度
+     * @param y 纬度
+     * @param cursor 上一次返回的游标，第一页不传
+     * @return 商铺列表和下一页的游标
+     */
+    Result queryShopByTypeScroll(Integer typeId, Double x, Double y, String cursor);
+
+    /**
+     * 新增商铺信息，事务提交后同步空间索引
+     * @param shop 商铺数据
+     * @return 商铺id
+     */
+    Result saveShop(Shop shop);
+
     /**
      * 更新商铺信息
      * @param shop 商铺数据
      * @return 无
      */
     Result update(Shop shop);
+
+    /**
+     * 缓存预热：按销量预热top-N店铺的逻辑过期缓存
+     * @param topN 预热的店铺数量
+     * @return 实际预热的店铺数量
+     */
+    int warmUpShopCache(int topN);
+
+    /**
+     * 全量加载本地空间索引
+     * @return 加载的店铺数量
+     */
+    int loadShopGeoIndex();
+
+    /**
+     * 全量重建redis的店铺GEO索引
+     * @return 写入的店铺数量
+     */
+    Result rebuildShopGeo();
 }
@@ -1,6 +1,7 @@
 package com.hmdp.service;
 
 import com.hmdp.dto.Result;
+import com.hmdp.dto.ShopTypeSnapshot;
 import com.hmdp.entity.ShopType;
 import com.baomidou.mybatisplus.extension.service.IService;
 
@@ -21,4 +22,15 @@ public interface IShopTypeService extends IService<ShopType> {
      * @return 商铺类型列表
      */
     Result queryTypeList();
+
+    /**
+     * 查询商铺类型列表快照(预先序列化的响应体和ETag)
+     * @return 快照
+     */
+    ShopTypeSnapshot getTypeSnapshot();
+
+    /**
+     * 商铺类型变更通知，所有实例刷新快照
+     */
+    void notifyTypeChanged();
 }
@@ -3,9 +3,12 @@ package com.hmdp.service;
 import com.baomidou.mybatisplus.extension.service.IService;
 import com.hmdp.dto.LoginFormDTO;
 import com.hmdp.dto.Result;
+import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.User;
 
 import javax.servlet.http.HttpSession;
+import java.util.Collection;
+import java.util.Map;
 
 /**
  * <p>
@@ -42,4 +45,11 @@ public interface IUserService extends IService<User> {
      * @return
      */
     Result signCount();
+
+    /**
+     * 批量查询用户公开信息(带缓存)
+     * @param ids 用户id集合
+     * @return 用户id -> 用户信息
+     */
+    Map<Long, UserDTO> queryUserDTOs(Collection<Long> ids);
 }
@@ -1,6 +1,5 @@
 package com.hmdp.service.impl;
 
-import cn.hutool.core.bean.BeanUtil;
 import cn.hutool.core.util.BooleanUtil;
 import cn.hutool.core.util.StrUtil;
 import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
@@ -9,24 +8,40 @@ import com.hmdp.dto.ScrollResult;
 import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.Blog;
 import com.hmdp.entity.Follow;
-import com.hmdp.entity.User;
 import com.hmdp.mapper.BlogMapper;
 import com.hmdp.service.IBlogService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.service.IFollowService;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.BlogLikeKeys;
+import com.hmdp.utils.FeedFanoutWorker;
+import com.hmdp.utils.RedisHealthDetector;
 import com.hmdp.utils.SystemConstants;
 import com.hmdp.utils.UserHolder;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.DefaultTypedTuple;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
 
 import javax.annotation.Resource;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.util.*;
 import java.util.stream.Collectors;
 
-import static com.hmdp.utils.RedisConstants.BLOG_LIKED_KEY;
+import static com.hmdp.utils.RedisConstants.FEED_ACTIVE_KEY;
+import static com.hmdp.utils.RedisConstants.FEED_BIG_V_KEY;
 import static com.hmdp.utils.RedisConstants.FEED_KEY;
+import static com.hmdp.utils.RedisConstants.FEED_OUTBOX_KEY;
+import static com.hmdp.utils.RedisConstants.FOLLOWS_KEY;
+import static com.hmdp.utils.SystemConstants.FEED_PAGE_SIZE;
 
 /**
  * <p>
@@ -39,6 +54,17 @@ import static com.hmdp.utils.RedisConstants.FEED_KEY;
 @Service
 public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IBlogService {
 
+    private static final DefaultRedisScript<List> LIKE_SCRIPT;
+
+    //查询点赞数时redis与数据库两边不一致(期间发生了写回)的最大重新读取次数
+    private static final int LIKE_COUNT_MAX_ATTEMPTS = 3;
+
+    static {
+        LIKE_SCRIPT = new DefaultRedisScript<>();
+        LIKE_SCRIPT.setLocation(new ClassPathResource("like.lua"));
+        LIKE_SCRIPT.setResultType(List.class);
+    }
+
     @Resource
     private IUserService userService;
 
@@ -48,6 +74,18 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
     @Resource
     private IFollowService followService;
 
+    @Resource
+    private RedisHealthDetector redisHealthDetector;
+
+    @Resource
+    private FeedFanoutWorker feedFanoutWorker;
+
+    @Value("${hmdp.feed.big-v-threshold:5000}")
+    private int bigVThreshold;
+
+    @Value("${hmdp.feed.inbox.max-size:1000}")
+    private int inboxMaxSize;
+
     /**
      * 查询热门博客
      * @param current
@@ -60,11 +98,8 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
                 .page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE));
         // 获取当前页数据
         List<Blog> records = page.getRecords();
-        // 查询用户
-        records.forEach(blog ->  {
-            queryBlogUser(blog);
-            isBlogLiked(blog);
-        });
+        // 批量查询用户和点赞状态
+        fillBlogs(records);
         return Result.ok(records);
     }
 
@@ -79,25 +114,162 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         if (blog == null) {
             return Result.fail("笔记不存在！");
         }
-        //查询blog有关的用户
-        queryBlogUser(blog);
-        //查询Blog是否被点赞
-        isBlogLiked(blog);
+        //查询blog有关的用户和是否被点赞
+        fillBlogs(Collections.singletonList(blog));
         return Result.ok(blog);
     }
 
-    private void isBlogLiked(Blog blog) {
-        //获取登录用户
+    /**
+     * 补全笔记的作者信息和当前用户的点赞状态
+     * 作者一次批量查询用户缓存，点赞状态一次pipeline查询，往返次数与笔记数量无关
+     */
+    private void fillBlogs(List<Blog> blogs) {
+        if (blogs.isEmpty()) {
+            return;
+        }
+        //批量查询作者
+        Set<Long> userIds = blogs.stream().map(Blog::getUserId).collect(Collectors.toSet());
+        Map<Long, UserDTO> userMap = userService.queryUserDTOs(userIds);
+        for (Blog blog : blogs) {
+            UserDTO author = userMap.get(blog.getUserId());
+            if (author != null) {
+                blog.setName(author.getNickName());
+                blog.setIcon(author.getIcon());
+            }
+        }
+
+        //点赞数：一次pipeline读取redis中的点赞数，不存在的从数据库初始化
+        List<Object> cached = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (Blog blog : blogs) {
+                conn.hGet(BlogLikeKeys.count(BlogLikeKeys.shardOf(blog.getId())), blog.getId().toString());
+            }
+            return null;
+        });
+        List<Long> missing = new ArrayList<>();
+        for (int i = 0; i < blogs.size(); i++) {
+            if (cached.get(i) == null) {
+                missing.add(blogs.get(i).getId());
+            } else {
+                blogs.get(i).setLiked(Integer.valueOf((String) cached.get(i)));
+            }
+        }
+        if (!missing.isEmpty()) {
+            Map<Long, Long> counts = seedLikeCounts(missing);
+            for (Blog blog : blogs) {
+                Long count = counts.get(blog.getId());
+                if (count != null) {
+                    blog.setLiked(count.intValue());
+                }
+            }
+        }
+
+        //获取登录用户，未登录不需要查询点赞状态
         UserDTO user = UserHolder.getUser();
         if (user == null) {
-            //用户未登录，不需要处理
             return;
         }
-        Long userId = UserHolder.getUser().getId();
-        //判断当前的用户是否已经点赞
-        String key = BLOG_LIKED_KEY + blog.getId();
-        Double score = stringRedisTemplate.opsForZSet().score(key, userId.toString());
-        blog.setIsLike(score != null);
+        String member = user.getId().toString();
+        //一次pipeline查询当前用户是否点赞 ZSCORE blog:liked:{分片号}:id userId
+        List<Object> results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (Blog blog : blogs) {
+                conn.zScore(BlogLikeKeys.liked(blog.getId()), member);
+            }
+            return null;
+        });
+        for (int i = 0; i < blogs.size(); i++) {
+            blogs.get(i).setIsLike(results.get(i) != null);
+        }
+    }
+
+    /**
+     * 初始化redis中的点赞数：HSETNX，并发初始化时只有一个生效
+     * 未初始化的笔记点赞脚本不会修改增量，查询期间只有写回在增量和数据库之间转移，结果就是当前的点赞数
+     * @param ids 笔记id
+     * @return 笔记id -> 点赞数，不存在的笔记不在结果中
+     */
+    private Map<Long, Long> seedLikeCounts(List<Long> ids) {
+        Map<Long, Long> counts = queryLikeCounts(ids);
+        if (!counts.isEmpty()) {
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection conn = (StringRedisConnection) connection;
+                counts.forEach((id, count) ->
+                        conn.hSetNX(BlogLikeKeys.count(BlogLikeKeys.shardOf(id)), id.toString(), count.toString()));
+                return null;
+            });
+        }
+        return counts;
+    }
+
+    /**
+     * 查询点赞数 = 数据库中的点赞数 + 增量hash和flushing中尚未写回的增量
+     * flushing中的增量在数据库提交之后、HDEL之前已经包含在数据库中，按(批次id, 笔记id)是否已记录判断，已记录的不再累加；
+     * 点赞数和是否已记录在一条SQL中读取，SQL前后各读一次flushing和批次id，期间被写回修改过时重新读取，
+     * 保证redis和数据库两边的数据对应同一时刻
+     * @param ids 笔记id
+     * @return 笔记id -> 点赞数，不存在的笔记不在结果中
+     */
+    private Map<Long, Long> queryLikeCounts(List<Long> ids) {
+        Map<Long, Long> counts = new HashMap<>(ids.size());
+        if (ids.isEmpty()) {
+            return counts;
+        }
+        for (int attempt = 0; ; attempt++) {
+            List<Object> before = readPendingLikes(ids);
+            Set<String> flushIds = new HashSet<>();
+            for (int i = 0; i < ids.size(); i++) {
+                Object flushId = before.get(i * 3 + 2);
+                if (flushId != null) {
+                    flushIds.add((String) flushId);
+                }
+            }
+            List<Map<String, Object>> rows = getBaseMapper().selectLikedWithFlushed(ids, flushIds);
+            List<Object> after = readPendingLikes(ids);
+            //flushing和批次id只会被写回修改，两次读取一致说明SQL执行期间没有发生交换或删除(增量hash不影响数据库)
+            boolean stable = true;
+            for (int i = 0; i < ids.size() && stable; i++) {
+                stable = Objects.equals(before.get(i * 3 + 1), after.get(i * 3 + 1))
+                        && Objects.equals(before.get(i * 3 + 2), after.get(i * 3 + 2));
+            }
+            if (!stable && attempt < LIKE_COUNT_MAX_ATTEMPTS - 1) {
+                continue;
+            }
+            Map<Long, Integer> indexes = new HashMap<>(ids.size());
+            for (int i = 0; i < ids.size(); i++) {
+                indexes.put(ids.get(i), i);
+            }
+            for (Map<String, Object> row : rows) {
+                Long id = ((Number) row.get("id")).longValue();
+                int i = indexes.get(id);
+                long liked = row.get("liked") == null ? 0 : ((Number) row.get("liked")).longValue();
+                boolean flushed = ((Number) row.get("flushed")).intValue() == 1;
+                long pending = parseDelta(after.get(i * 3)) + (flushed ? 0 : parseDelta(after.get(i * 3 + 1)));
+                counts.put(id, liked + pending);
+            }
+            return counts;
+        }
+    }
+
+    /**
+     * 一次pipeline读取每篇笔记的增量、flushing中的增量、所在分片正在写回的批次id
+     * @return 每篇笔记3个元素
+     */
+    private List<Object> readPendingLikes(List<Long> ids) {
+        return stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (Long id : ids) {
+                int shard = BlogLikeKeys.shardOf(id);
+                conn.hGet(BlogLikeKeys.delta(shard), id.toString());
+                conn.hGet(BlogLikeKeys.flushing(shard), id.toString());
+                conn.get(BlogLikeKeys.flushId(shard));
+            }
+            return null;
+        });
+    }
+
+    private static long parseDelta(Object delta) {
+        return delta == null ? 0 : Long.parseLong((String) delta);
     }
 
     /**
@@ -106,30 +278,57 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
      * @return
      */
     public Result likeBlog(Long id) {
+        //点赞状态保存在redis，redis不可用时快速失败
+        redisHealthDetector.ensureAvailable();
         //获取登录用户
         Long userId = UserHolder.getUser().getId();
-
-        //判断当前的用户是否已经点赞
-        String key = BLOG_LIKED_KEY + id;
-        Double score = stringRedisTemplate.opsForZSet().score(key, userId.toString());
-        if (score == null) {
-            //如果未点赞，可以点赞
-            //数据库点赞数+1
-            boolean isSuccess = update().setSql("liked = liked + 1").eq("id", id).update();
-            //保存用户到Redis的zset集合 zadd key value score
-            if (isSuccess) {
-                stringRedisTemplate.opsForZSet().add(key, userId.toString(), System.currentTimeMillis());
+        //一次lua脚本完成：判断是否已点赞、切换点赞状态、累加点赞数增量(由BlogLikeFlusher批量写回数据库)和点赞数
+        //点赞数尚未初始化时不做任何修改并返回nil
+        List<Object> result = like(id, userId);
+        if (result == null) {
+            //首次点赞：从数据库初始化点赞数，同时确认笔记存在，避免不存在的id写入点赞集合和增量
+            if (!seedLikeCounts(Collections.singletonList(id)).containsKey(id)) {
+                return Result.fail("笔记不存在！");
             }
-        } else {
-            //如果已点赞，取消点赞
-            //数据库点赞数-1
-            boolean isSuccess = update().setSql("liked = liked - 1").eq("id", id).update();
-            //从Redis的zset集合中移除
-            if (isSuccess) {
-                stringRedisTemplate.opsForZSet().remove(key, userId.toString());
+            result = like(id, userId);
+            if (result == null) {
+                //初始化后点赞数hash被淘汰或删除
+                return Result.fail("点赞失败，请稍后重试！");
             }
         }
-        return Result.ok();
+        //返回新的点赞状态和点赞数量
+        Map<String, Object> data = new HashMap<>(2);
+        data.put("isLike", ((Long) result.get(0)) == 1);
+        data.put("liked", result.get(1));
+        return Result.ok(data);
+    }
+
+    /**
+     * 执行点赞脚本，点赞集合、增量hash、点赞数hash使用同一个hash tag，集群中在同一个slot
+     * @return [新的点赞状态, 新的点赞数]，点赞数尚未初始化时返回null
+     */
+    @SuppressWarnings("unchecked")
+    private List<Object> like(Long id, Long userId) {
+        int shard = BlogLikeKeys.shardOf(id);
+        return stringRedisTemplate.execute(LIKE_SCRIPT,
+                Arrays.asList(BlogLikeKeys.liked(id), BlogLikeKeys.delta(shard), BlogLikeKeys.count(shard)),
+                userId.toString(), String.valueOf(System.currentTimeMillis()), id.toString());
+    }
+
+    /**
+     * 写回一批点赞数增量：在同一个事务中记录(批次id, 笔记id)并累加点赞数，
+     * 已经记录过的笔记跳过，写回后、从redis删除前宕机时重复执行不会重复累加
+     */
+    @Transactional
+    public int flushLikedBatch(String flushId, Map<Long, Long> deltas) {
+        Map<Long, Long> pending = new HashMap<>(deltas);
+        pending.keySet().removeAll(getBaseMapper().selectFlushedBlogIds(flushId, deltas.keySet()));
+        if (pending.isEmpty()) {
+            return 0;
+        }
+        getBaseMapper().insertFlushRecords(flushId, pending.keySet());
+        getBaseMapper().incrLikedBatch(pending);
+        return pending.size();
     }
 
     /**
@@ -139,20 +338,18 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
      */
     public Result queryBlogLikes(Long id) {
         //查询top5的点赞用户 zrange key 0 4
-        String key = BLOG_LIKED_KEY + id;
+        String key = BlogLikeKeys.liked(id);
         Set<String> top5 = stringRedisTemplate.opsForZSet().range(key, 0, 4);
         //解析其中的用户id
         if(top5 == null || top5.isEmpty()){
             return Result.ok(Collections.emptyList());
         }
         List<Long> ids = top5.stream().map(Long::valueOf).collect(Collectors.toList());
-        String idStr = StrUtil.join(",", ids);
-        //根据用户id查询用户
-        List<UserDTO> userDTOS = userService.query()
-                .in("id", ids)
-                .last("ORDER BY FIELD(id," + idStr + ")").list()
-                .stream()
-                .map(user -> BeanUtil.copyProperties(user, UserDTO.class))
+        //根据用户id批量查询用户(走用户缓存)，按点赞顺序返回
+        Map<Long, UserDTO> userMap = userService.queryUserDTOs(ids);
+        List<UserDTO> userDTOS = ids.stream()
+                .map(userMap::get)
+                .filter(Objects::nonNull)
                 .collect(Collectors.toList());
         return Result.ok(userDTOS);
     }
@@ -163,26 +360,52 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
      * @return
      */
     public Result saveBlog(Blog blog) {
+        //推送收件箱依赖redis，redis不可用时快速失败
+        redisHealthDetector.ensureAvailable();
         // 获取登录用户
         UserDTO user = UserHolder.getUser();
         blog.setUserId(user.getId());
+        //发布时间由应用写入(截断到秒，与数据库精度一致)，收件箱、发件箱的分数和数据库回源都使用create_time的毫秒值
+        blog.setCreateTime(LocalDateTime.now().withNano(0));
         // 保存探店博文
         boolean isSuccess = save(blog);
         if (!isSuccess){
             return Result.fail("新增笔记失败！");
         }
-        //查询笔记作者的粉丝 select * from tb_follow where follow_user_id = ?
-        List<Follow> follows = followService.query().eq("follow_user_id", user.getId()).list();
-        //推送笔记id给所有的粉丝
-        for (Follow follow : follows) {
-            //粉丝自己的收件箱
-            String key = FEED_KEY + follow.getUserId();
-            stringRedisTemplate.opsForZSet().add(key, blog.getId().toString(), System.currentTimeMillis());
+        long timestamp = toMillis(blog.getCreateTime());
+        //粉丝数超过阈值的作者只写自己的发件箱，由粉丝读取时拉取合并，发布耗时与粉丝数无关
+        if (isBigV(user.getId())) {
+            String outboxKey = FEED_OUTBOX_KEY + user.getId();
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection conn = (StringRedisConnection) connection;
+                conn.zAdd(outboxKey, timestamp, blog.getId().toString());
+                //与收件箱相同，只保留最新的max条，更早的笔记由粉丝读取时从数据库查询
+                conn.zRemRange(outboxKey, 0, -(inboxMaxSize + 1));
+                return null;
+            });
+            return Result.ok(blog.getId());
         }
+        //推送笔记id给所有的粉丝，由后台任务分批执行
+        feedFanoutWorker.submit(user.getId(), blog.getId(), timestamp);
         //返回id
         return Result.ok(blog.getId());
     }
 
+    /**
+     * 判断作者是否为大V(粉丝数达到阈值)
+     * 大V记录在 feed:bigv 集合中且不再撤销，避免粉丝数在阈值附近波动时笔记时而推送时而只写发件箱
+     */
+    private boolean isBigV(Long authorId) {
+        if (BooleanUtil.isTrue(stringRedisTemplate.opsForSet().isMember(FEED_BIG_V_KEY, authorId.toString()))) {
+            return true;
+        }
+        if (followService.countFans(authorId) < bigVThreshold) {
+            return false;
+        }
+        stringRedisTemplate.opsForSet().add(FEED_BIG_V_KEY, authorId.toString());
+        return true;
+    }
+
     /**
      * 查询用户收件箱
      * @param max
@@ -192,12 +415,69 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
     public Result queryBlogOfFollow(Long max, Integer offset) {
         //获取当前用户
         Long userId = UserHolder.getUser().getId();
-        //查询收件箱 ZREVRANGEBYSCORE key max min LIMIT offset count
-        String key = FEED_KEY + userId;
-        Set<ZSetOperations.TypedTuple<String>> typedTuples = stringRedisTemplate.opsForZSet()
-                .reverseRangeByScoreWithScores(key, 0, max, offset, 2);
+        //收件箱 + 关注的大V的发件箱 SINTER follows:userId feed:bigv
+        String inboxKey = FEED_KEY + userId;
+        List<String> keys = new ArrayList<>();
+        keys.add(inboxKey);
+        Set<String> bigVs = stringRedisTemplate.opsForSet().intersect(FOLLOWS_KEY + userId, FEED_BIG_V_KEY);
+        if (bigVs == null) {
+            bigVs = Collections.emptySet();
+        }
+        //来源顺序：收件箱，然后依次是outboxAuthors的发件箱
+        List<String> outboxAuthors = new ArrayList<>(bigVs);
+        outboxAuthors.forEach(bigV -> keys.add(FEED_OUTBOX_KEY + bigV));
+        //记录活跃时间，新用户或收件箱已被清理的用户先从数据库重建收件箱
+        Boolean inactive = stringRedisTemplate.opsForZSet().add(FEED_ACTIVE_KEY, userId.toString(), System.currentTimeMillis());
+        if (BooleanUtil.isTrue(inactive)) {
+            rebuildInbox(userId, bigVs);
+        }
+        //一次pipeline从每个来源查询 ZREVRANGEBYSCORE key max 0 LIMIT 0 offset+count，以及来源的长度和最早的一条
+        //合并后的前offset+count条一定在各来源各自的前offset+count条之中
+        int limit = offset + FEED_PAGE_SIZE;
+        List<Object> sources = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (String key : keys) {
+                conn.zRevRangeByScoreWithScores(key, 0, max, 0, limit);
+                conn.zCard(key);
+                conn.zRangeWithScores(key, 0, 0);
+            }
+            return null;
+        });
+        List<Object> candidates = new ArrayList<>(keys.size());
+        for (int i = 0; i < keys.size(); i++) {
+            Collection<?> page = (Collection<?>) sources.get(i * 3);
+            candidates.add(page);
+            //收件箱和发件箱都会截断，该来源已经读完且被截断过，更早的笔记从数据库查询
+            Long size = (Long) sources.get(i * 3 + 1);
+            Collection<?> oldest = (Collection<?>) sources.get(i * 3 + 2);
+            if (page.size() >= limit || size == null || size < inboxMaxSize || oldest.isEmpty()) {
+                continue;
+            }
+            //分数就是create_time的毫秒值，查询最早一条及更早的笔记(包含同一秒被截断的)，与redis中重复的在归并时去重
+            //该来源已经读完，redis中max之前的笔记都在本次的候选中
+            long oldestScore = ((ZSetOperations.TypedTuple<?>) oldest.iterator().next()).getScore().longValue();
+            List<Long> authorIds = i == 0
+                    ? queryFollowedAuthors(userId, bigVs)
+                    : Collections.singletonList(Long.valueOf(outboxAuthors.get(i - 1)));
+            candidates.add(queryFeedFromDb(authorIds, toTime(Math.min(max, oldestScore)), limit));
+        }
+        //多路归并：按时间戳倒序，时间戳相同时按id倒序，保证翻页时顺序稳定
+        List<ZSetOperations.TypedTuple<String>> merged = new ArrayList<>();
+        Set<String> seen = new HashSet<>();
+        for (Object source : candidates) {
+            for (Object item : (Collection<?>) source) {
+                ZSetOperations.TypedTuple<String> tuple = (ZSetOperations.TypedTuple<String>) item;
+                if (seen.add(tuple.getValue())) {
+                    merged.add(tuple);
+                }
+            }
+        }
+        merged.sort(Comparator.comparing((ZSetOperations.TypedTuple<String> tuple) -> tuple.getScore()).reversed()
+                .thenComparing(tuple -> Long.valueOf(tuple.getValue()), Comparator.reverseOrder()));
+        //跳过上一页已经返回的offset条
+        List<ZSetOperations.TypedTuple<String>> typedTuples = merged.subList(Math.min(offset, merged.size()), Math.min(limit, merged.size()));
         //非空判断
-        if (typedTuples == null || typedTuples.isEmpty()) {
+        if (typedTuples.isEmpty()) {
             return Result.ok();
         }
 
@@ -218,15 +498,17 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
                 os = 1; //计数器重置
             }
         }
+        if (minTime == max) {
+            //整页的时间戳都等于max，下一页还要跳过上一页跳过的部分
+            os += offset;
+        }
         //根据id查询blog
         //FILED: 让查询结果按照传入ID的顺序排列
         String idStr = StrUtil.join(",", ids);
         List<Blog> blogs = query().in("id", ids).last("ORDER BY FIELD(id," + idStr + ")").list();
 
-        for (Blog blog : blogs) {
-            queryBlogUser(blog); //查询blog有关的用户
-            isBlogLiked(blog); //查询blog是否被点赞
-        }
+        //批量查询blog有关的用户和是否被点赞
+        fillBlogs(blogs);
         //封装返回
         ScrollResult r = new ScrollResult();
         r.setList(blogs);
@@ -235,10 +517,59 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         return Result.ok(r);
     }
 
-    private void queryBlogUser(Blog blog) {
-        Long userId = blog.getUserId();
-        User user = userService.getById(userId);
-        blog.setName(user.getNickName());
-        blog.setIcon(user.getIcon());
+    /**
+     * 从数据库重建收件箱：关注的作者(不含大V)最新的若干条笔记
+     */
+    private void rebuildInbox(Long userId, Set<String> bigVs) {
+        List<ZSetOperations.TypedTuple<String>> tuples = queryFeedFromDb(queryFollowedAuthors(userId, bigVs), null, inboxMaxSize);
+        if (!tuples.isEmpty()) {
+            stringRedisTemplate.opsForZSet().add(FEED_KEY + userId, new HashSet<>(tuples));
+        }
+    }
+
+    /**
+     * 查询关注的作者(不含大V，大V的笔记在发件箱中)
+     */
+    private List<Long> queryFollowedAuthors(Long userId, Set<String> bigVs) {
+        return followService.query()
+                .select("follow_user_id")
+                .eq("user_id", userId)
+                .list()
+                .stream()
+                .map(Follow::getFollowUserId)
+                .filter(authorId -> !bigVs.contains(authorId.toString()))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * 查询作者们的笔记，按发布时间倒序
+     * select id, create_time from tb_blog where user_id in (...) and create_time <= ?
+     * order by create_time desc, id desc limit ?
+     * @param maxTime 发布时间上限(包含)，为空时不限制
+     * @return 笔记id和发布时间戳(create_time的毫秒值，与收件箱、发件箱的分数一致)
+     */
+    private List<ZSetOperations.TypedTuple<String>> queryFeedFromDb(List<Long> authorIds, LocalDateTime maxTime, int limit) {
+        if (authorIds.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<Blog> blogs = query()
+                .select("id", "create_time")
+                .in("user_id", authorIds)
+                .le(maxTime != null, "create_time", maxTime)
+                .orderByDesc("create_time")
+                .orderByDesc("id")
+                .last("limit " + limit)
+                .list();
+        return blogs.stream()
+                .<ZSetOperations.TypedTuple<String>>map(blog -> new DefaultTypedTuple<>(blog.getId().toString(), (double) toMillis(blog.getCreateTime())))
+                .collect(Collectors.toList());
+    }
+
+    private static LocalDateTime toTime(long millis) {
+        return LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneId.systemDefault());
+    }
+
+    private static long toMillis(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
     }
 }
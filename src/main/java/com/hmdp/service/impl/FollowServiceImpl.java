@@ -1,6 +1,5 @@
 package com.hmdp.service.impl;
 
-import cn.hutool.core.bean.BeanUtil;
 import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
 import com.hmdp.dto.Result;
 import com.hmdp.dto.UserDTO;
@@ -9,14 +8,20 @@ import com.hmdp.mapper.FollowMapper;
 import com.hmdp.service.IFollowService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.RedisHealthDetector;
 import com.hmdp.utils.UserHolder;
+import org.springframework.core.io.ClassPathResource;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Service;
 
 import javax.annotation.Resource;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 /**
@@ -30,12 +35,23 @@ import java.util.stream.Collectors;
 @Service
 public class FollowServiceImpl extends ServiceImpl<FollowMapper, Follow> implements IFollowService {
 
+    private static final DefaultRedisScript<Long> INCR_IF_EXISTS_SCRIPT;
+
+    static {
+        INCR_IF_EXISTS_SCRIPT = new DefaultRedisScript<>();
+        INCR_IF_EXISTS_SCRIPT.setLocation(new ClassPathResource("incr_if_exists.lua"));
+        INCR_IF_EXISTS_SCRIPT.setResultType(Long.class);
+    }
+
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
     @Resource
     private IUserService userService;
 
+    @Resource
+    private RedisHealthDetector redisHealthDetector;
+
     /**
      * 关注或取消关注
      * @param followUserId
@@ -43,6 +59,8 @@ public class FollowServiceImpl extends ServiceImpl<FollowMapper, Follow> impleme
      * @return
      */
     public Result follow(Long followUserId, Boolean isFollow) {
+        //关注列表同步保存在redis，redis不可用时快速失败
+        redisHealthDetector.ensureAvailable();
         //获取登录用户
         Long userId = UserHolder.getUser().getId();
 
@@ -53,8 +71,9 @@ public class FollowServiceImpl extends ServiceImpl<FollowMapper, Follow> impleme
             boolean save = save(follow);
             if(save){
                 //把关注用户的id，放入redis的set集合 sadd userId followerUserId
-                String key = "follows:" + userId;
+                String key = RedisConstants.FOLLOWS_KEY + userId;
                 stringRedisTemplate.opsForSet().add(key, followUserId.toString());
+                incrFans(followUserId, 1);
             }
         }else{
             //delete from tb_follow where userId = ? and followUserId = ?
@@ -62,13 +81,37 @@ public class FollowServiceImpl extends ServiceImpl<FollowMapper, Follow> impleme
                     .eq("user_id", userId).eq("follow_user_id", followUserId));
             //把关注用户的id从Redis的set集合移除
             if (isSuccess){
-                String key = "follows:" + userId;
+                String key = RedisConstants.FOLLOWS_KEY + userId;
                 stringRedisTemplate.opsForSet().remove(key, followUserId.toString());
+                incrFans(followUserId, -1);
             }
         }
         return Result.ok();
     }
 
+    /**
+     * 查询作者的粉丝数：优先读redis中的计数，不存在时 select count(*) from tb_follow 并写入，
+     * 计数带过期时间，关注/取消关注期间的并发误差在过期后自动修正
+     */
+    public long countFans(Long authorId) {
+        String key = RedisConstants.FEED_FANS_KEY + authorId;
+        String fans = stringRedisTemplate.opsForValue().get(key);
+        if (fans != null) {
+            return Long.parseLong(fans);
+        }
+        Integer count = query().eq("follow_user_id", authorId).count();
+        stringRedisTemplate.opsForValue().setIfAbsent(key, count.toString(), RedisConstants.FEED_FANS_TTL, TimeUnit.HOURS);
+        return count;
+    }
+
+    /**
+     * 关注/取消关注时增减粉丝数，只在计数已存在时修改，不存在时等下次查询从数据库统计
+     */
+    private void incrFans(Long authorId, long delta) {
+        stringRedisTemplate.execute(INCR_IF_EXISTS_SCRIPT,
+                Collections.singletonList(RedisConstants.FEED_FANS_KEY + authorId), String.valueOf(delta));
+    }
+
     /**
      * 查询是否关注
      * @param followUserId
@@ -88,9 +131,9 @@ public class FollowServiceImpl extends ServiceImpl<FollowMapper, Follow> impleme
     public Result followCommons(Long id) {
         //获取当前用户
         Long userId = UserHolder.getUser().getId();
-        String key = "follows:" + userId;
+        String key = RedisConstants.FOLLOWS_KEY + userId;
         //求交集
-        String key2 = "follows:" + id;
+        String key2 = RedisConstants.FOLLOWS_KEY + id;
         Set<String> intersect = stringRedisTemplate.opsForSet().intersect(key, key2);
         if (intersect == null || intersect.isEmpty()){
             //没有共同关注
@@ -98,11 +141,8 @@ public class FollowServiceImpl extends ServiceImpl<FollowMapper, Follow> impleme
         }
         //解析id集合
         List<Long> ids = intersect.stream().map(Long::valueOf).collect(Collectors.toList());
-        //查询用户
-        List<UserDTO> userDTOS = userService.listByIds(ids)
-                .stream()
-                .map(user -> BeanUtil.copyProperties(user, UserDTO.class))
-                .collect(Collectors.toList());
+        //批量查询用户(走用户缓存)
+        List<UserDTO> userDTOS = new ArrayList<>(userService.queryUserDTOs(ids).values());
         return Result.ok(userDTOS);
     }
 }
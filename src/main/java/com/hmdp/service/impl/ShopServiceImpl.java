@@ -1,26 +1,56 @@
 package com.hmdp.service.impl;
 
+import cn.hutool.core.lang.UUID;
 import cn.hutool.core.util.BooleanUtil;
+import cn.hutool.core.util.NumberUtil;
 import cn.hutool.core.util.StrUtil;
 import cn.hutool.json.JSONObject;
 import cn.hutool.json.JSONUtil;
+import com.baomidou.mybatisplus.extension.conditions.query.QueryChainWrapper;
+import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
+import com.hmdp.dto.GeoScrollResult;
 import com.hmdp.dto.Result;
-import com.hmdp.entity.RedisData;
 import com.hmdp.entity.Shop;
 import com.hmdp.mapper.ShopMapper;
 import com.hmdp.service.IShopService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.CacheInvalidator;
 import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.RedisHealthDetector;
+import com.hmdp.utils.ShopGeoIndex;
+import com.hmdp.utils.SystemConstants;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.geo.Circle;
+import org.springframework.data.geo.Distance;
+import org.springframework.data.geo.GeoResult;
+import org.springframework.data.geo.GeoResults;
+import org.springframework.data.geo.Point;
+import org.springframework.data.redis.connection.RedisGeoCommands;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.ScanOptions;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
-import java.time.LocalDateTime;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 /**
  * <p>
@@ -30,6 +60,7 @@ import java.util.concurrent.TimeUnit;
  * @author 虎哥
  * @since 2021-12-22
  */
+@Slf4j
 @Service
 public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IShopService {
 
@@ -39,6 +70,41 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
     @Resource
     private CacheClient cacheClient;
 
+    @Resource
+    private CacheInvalidator cacheInvalidator;
+
+    @Resource
+    private RedisHealthDetector redisHealth;
+
+    @Resource
+    private ShopGeoIndex shopGeoIndex;
+
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    @Resource
+    private RedissonClient redissonClient;
+
+    //店铺缓存是否使用hash分桶存储
+    @Value("${hmdp.cache.packed.enabled:false}")
+    private boolean packedEnabled;
+
+    //本实例的标识，店铺变更通知中携带，收到自己发出的通知时跳过(本实例已在发送前更新)
+    private final String instanceId = UUID.randomUUID().toString(true);
+
+    //订阅店铺变更通知(实例标识:店铺id)，同步本实例的空间索引
+    @PostConstruct
+    private void init() {
+        redisMessageListenerContainer.addMessageListener((message, pattern) -> {
+            String body = new String(message.getBody(), StandardCharsets.UTF_8);
+            int index = body.indexOf(':');
+            if (index < 0 || body.substring(0, index).equals(instanceId)) {
+                return;
+            }
+            refreshGeoIndex(Long.valueOf(body.substring(index + 1)));
+        }, new ChannelTopic(RedisConstants.SHOP_CHANGED_CHANNEL));
+    }
+
     /**
      * 根据id查询商铺信息
      * @param id 商铺id
@@ -54,7 +120,9 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
 
         //逻辑过期解决缓存击穿问题
         //Shop shop = queryWithLogicalExpire(id);
-        Shop shop = cacheClient.queryWithLogicalExpire(RedisConstants.CACHE_SHOP_KEY, id, Shop.class, this::getById, RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        Shop shop = packedEnabled
+                ? cacheClient.queryPacked(RedisConstants.CACHE_SHOP_KEY, id, Shop.class, this::getById, RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES)
+                : cacheClient.queryWithLogicalExpire(RedisConstants.CACHE_SHOP_KEY, id, Shop.class, this::getById, RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
         if(shop == null){
             return Result.fail("店铺不存在");//配合穿透问题
         }
@@ -62,9 +130,257 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         return Result.ok(shop);
     }
 
+    /**
+     * 根据id查询已渲染好的商铺JSON：缓存中存的就是响应里data的原样内容，直接透传
+     * @param id 商铺id
+     * @return 商铺JSON，不存在时返回null
+     */
+    public String queryRenderedById(Long id) {
+        if(packedEnabled){
+            //分桶存储模式
+            return cacheClient.queryRenderedPacked(RedisConstants.CACHE_SHOP_KEY, id, this::getById, RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        }
+        return cacheClient.queryRenderedWithLogicalExpire(RedisConstants.CACHE_SHOP_KEY, id, Shop.class, this::getById, RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
+    }
+
+
+    /**
+     * 根据商铺类型分页查询商铺信息
+     * 传入坐标时查询本地空间索引(未加载完成时查询redis的GEO索引)，按距离由近到远分页，
+     * 再一次批量查询缓存/数据库补全店铺信息
+     * @param typeId 商铺类型
+     * @param current 页码
+     * @param x 经度，可选
+     * @param y 纬度，可选
+     * @return 商铺列表
+     */
+    public Result queryShopByType(Integer typeId, Integer current, Double x, Double y) {
+        //1.判断是否需要根据坐标查询
+        if (x == null || y == null) {
+            return queryShopByTypeFromDb(typeId, current);
+        }
+
+        //2.计算分页参数
+        int from = (current - 1) * SystemConstants.DEFAULT_PAGE_SIZE;
+        int end = current * SystemConstants.DEFAULT_PAGE_SIZE;
+
+        //3.优先查询本地空间索引，不需要网络请求
+        if (shopGeoIndex.isReady()) {
+            long[] nearestIds = new long[end];
+            double[] nearestDistances = new double[end];
+            int count = shopGeoIndex.nearest(typeId.longValue(), x, y, SystemConstants.NEARBY_SHOP_RADIUS, end, nearestIds, nearestDistances);
+            List<Long> ids = new ArrayList<>(Math.max(0, count - from));
+            Map<Long, Double> distanceMap = new HashMap<>();
+            for (int i = from; i < count; i++) {
+                ids.add(nearestIds[i]);
+                distanceMap.put(nearestIds[i], nearestDistances[i]);
+            }
+            return toShopPage(ids, distanceMap);
+        }
+
+        //4.本地索引还没有加载完成，查询redis，按照距离排序、分页 GEORADIUS key x y 5000 m WITHDIST ASC COUNT end
+        //(GEOSEARCH需要spring-data-redis 2.6，当前版本使用等价的GEORADIUS)；redis也不可用时按数据库分页
+        if (!redisHealth.isAvailable()) {
+            return queryShopByTypeFromDb(typeId, current);
+        }
+        String key = RedisConstants.SHOP_GEO_KEY + typeId;
+        GeoResults<RedisGeoCommands.GeoLocation<String>> results;
+        try {
+            results = stringRedisTemplate.opsForGeo().radius(key,
+                    new Circle(new Point(x, y), new Distance(SystemConstants.NEARBY_SHOP_RADIUS, RedisGeoCommands.DistanceUnit.METERS)),
+                    RedisGeoCommands.GeoRadiusCommandArgs.newGeoRadiusArgs().includeDistance().sortAscending().limit(end));
+        } catch (DataAccessException e) {
+            redisHealth.reportFailure(e);
+            return queryShopByTypeFromDb(typeId, current);
+        }
+        if (results == null) {
+            return Result.ok(Collections.emptyList());
+        }
+
+        //5.截取from ~ end的部分，记录店铺id和距离
+        List<Long> ids = new ArrayList<>();
+        Map<Long, Double> distanceMap = new HashMap<>();
+        results.getContent().stream().skip(from).forEach(result -> {
+            Long shopId = Long.valueOf(result.getContent().getName());
+            ids.add(shopId);
+            distanceMap.put(shopId, result.getDistance().getValue());
+        });
+        return toShopPage(ids, distanceMap);
+    }
+
+    /**
+     * 按距离由近到远滚动查询附近的商铺
+     * 游标中记录上一页最后一个店铺的距离和id，下一页从该位置之后继续，
+     * 不需要像按页码分页那样每次从最近处重新取出前面所有页再丢弃，深翻页与第一页的开销相同
+     * @param typeId 商铺类型
+     * @param x 经度
+     * @param y 纬度
+     * @param cursor 上一次返回的游标，第一页不传
+     * @return 商铺列表和下一页的游标，没有下一页时游标为空
+     */
+    public Result queryShopByTypeScroll(Integer typeId, Double x, Double y, String cursor) {
+        //1.解析游标
+        double lastDistance = -1;
+        long lastId = -1;
+        int served = 0;
+        if (StrUtil.isNotBlank(cursor)) {
+            try {
+                String[] parts = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8).split(":");
+                lastDistance = Double.parseDouble(parts[0]);
+                lastId = Long.parseLong(parts[1]);
+                served = Integer.parseInt(parts[2]);
+            } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+                return Result.fail("无效的游标");
+            }
+        }
+        int size = SystemConstants.DEFAULT_PAGE_SIZE;
+        List<Long> ids = new ArrayList<>(size);
+        Map<Long, Double> distanceMap = new HashMap<>();
+        //redis的结果被limit截断时，即使不满一页也还有下一页
+        boolean truncated = false;
+
+        if (shopGeoIndex.isReady()) {
+            //2.本地空间索引直接从游标位置之后取一页
+            long[] nearestIds = new long[size];
+            double[] nearestDistances = new double[size];
+            int count = shopGeoIndex.nearest(typeId.longValue(), x, y, SystemConstants.NEARBY_SHOP_RADIUS, size,
+                    lastDistance, lastId, nearestIds, nearestDistances);
+            for (int i = 0; i < count; i++) {
+                ids.add(nearestIds[i]);
+                distanceMap.put(nearestIds[i], nearestDistances[i]);
+            }
+        } else {
+            //3.本地索引还没有加载完成，GEORADIUS只能从最近处开始，按游标中已返回的数量多取一页，再过滤掉游标之前的
+            if (!redisHealth.isAvailable()) {
+                return Result.fail("服务繁忙，请稍后重试");
+            }
+            long limit = served + 2L * size;
+            GeoResults<RedisGeoCommands.GeoLocation<String>> results;
+            try {
+                results = stringRedisTemplate.opsForGeo().radius(RedisConstants.SHOP_GEO_KEY + typeId,
+                        new Circle(new Point(x, y), new Distance(SystemConstants.NEARBY_SHOP_RADIUS, RedisGeoCommands.DistanceUnit.METERS)),
+                        RedisGeoCommands.GeoRadiusCommandArgs.newGeoRadiusArgs().includeDistance().sortAscending().limit(limit));
+            } catch (DataAccessException e) {
+                redisHealth.reportFailure(e);
+                return Result.fail("服务繁忙，请稍后重试");
+            }
+            if (results != null) {
+                List<GeoResult<RedisGeoCommands.GeoLocation<String>>> content = results.getContent();
+                //redis返回的距离保留4位小数，游标可能来自本地索引(完整精度)，按同样的方式取整后再比较
+                double after = roundGeoDistance(lastDistance);
+                //取满limit条时，最远的距离上可能还有被截掉的店铺，这些店铺留到下一页(届时limit更大)
+                truncated = content.size() >= limit;
+                double cutoff = truncated ? content.get(content.size() - 1).getDistance().getValue() : Double.MAX_VALUE;
+                List<Long> candidates = new ArrayList<>(content.size());
+                for (GeoResult<RedisGeoCommands.GeoLocation<String>> result : content) {
+                    Long shopId = Long.valueOf(result.getContent().getName());
+                    double distance = result.getDistance().getValue();
+                    if (distance < after || (distance == after && shopId <= lastId) || distance >= cutoff) {
+                        continue;
+                    }
+                    candidates.add(shopId);
+                    distanceMap.put(shopId, distance);
+                }
+                //redis对同一距离的店铺不保证按id排序，先收集游标之后的全部店铺，按(距离, id)排序后再取一页，与本地索引的顺序一致
+                candidates.sort(Comparator.comparing((Long id) -> distanceMap.get(id)).thenComparing(id -> id));
+                ids.addAll(candidates.subList(0, Math.min(size, candidates.size())));
+            }
+        }
+
+        //4.不满一页(且没有被截断)说明没有下一页了，否则用本页最后一个店铺生成游标
+        GeoScrollResult r = new GeoScrollResult();
+        r.setList(toShops(ids, distanceMap));
+        if (ids.size() == size || (truncated && !ids.isEmpty())) {
+            Long tailId = ids.get(ids.size() - 1);
+            String next = distanceMap.get(tailId) + ":" + tailId + ":" + (served + ids.size());
+            r.setCursor(Base64.getUrlEncoder().withoutPadding().encodeToString(next.getBytes(StandardCharsets.UTF_8)));
+        }
+        return Result.ok(r);
+    }
+
+    /**
+     * 按redis GEORADIUS WITHDIST的精度(4位小数)取整距离
+     */
+    private static double roundGeoDistance(double distance) {
+        return distance < 0 ? distance : Math.round(distance * 10000) / 10000.0;
+    }
+
+    /**
+     * 一次批量查询店铺，按ids的顺序(距离由近到远)返回，并附上距离
+     * @param ids 店铺id
+     * @param distanceMap 店铺id -> 距离(米)
+     * @return 商铺列表
+     */
+    private Result toShopPage(List<Long> ids, Map<Long, Double> distanceMap) {
+        if (ids.isEmpty()) {
+            //没有下一页了
+            return Result.ok(Collections.emptyList());
+        }
+        return Result.ok(toShops(ids, distanceMap));
+    }
 
-    //自定义线程池
-    private static final ExecutorService CHCHE_REBUILD_EXECTURE = Executors.newFixedThreadPool(10);
+    private List<Shop> toShops(List<Long> ids, Map<Long, Double> distanceMap) {
+        if (ids.isEmpty()) {
+            return Collections.emptyList();
+        }
+        Map<Long, Shop> shopMap = queryShops(ids);
+        List<Shop> shops = new ArrayList<>(ids.size());
+        for (Long shopId : ids) {
+            Shop shop = shopMap.get(shopId);
+            if (shop == null) {
+                //索引中的店铺已被删除
+                continue;
+            }
+            shop.setDistance(distanceMap.get(shopId));
+            shops.add(shop);
+        }
+        return shops;
+    }
+
+    /**
+     * 按类型分页查询数据库
+     */
+    private Result queryShopByTypeFromDb(Integer typeId, Integer current) {
+        Page<Shop> page = query()
+                .eq("type_id", typeId)
+                .page(new Page<>(current, SystemConstants.DEFAULT_PAGE_SIZE));
+        return Result.ok(page.getRecords());
+    }
+
+    /**
+     * 批量查询店铺：一次MGET查询缓存，未命中的一次查询数据库
+     */
+    private Map<Long, Shop> queryShops(Collection<Long> ids) {
+        if (packedEnabled) {
+            //分桶存储模式逐个读取
+            Map<Long, Shop> shops = new HashMap<>(ids.size());
+            for (Long id : ids) {
+                Shop shop = cacheClient.queryPacked(RedisConstants.CACHE_SHOP_KEY, id, Shop.class, this::getById, RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
+                if (shop != null) {
+                    shops.put(id, shop);
+                }
+            }
+            return shops;
+        }
+        return cacheClient.queryBatchWithLogicalExpire(RedisConstants.CACHE_SHOP_KEY, ids, Shop.class,
+                this::loadShops, RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
+    }
+
+    /**
+     * 根据id批量查询数据库中的店铺 select * from tb_shop where id in (...)
+     */
+    private Map<Long, Shop> loadShops(Collection<Long> ids) {
+        return listByIds(ids).stream().collect(Collectors.toMap(Shop::getId, shop -> shop));
+    }
+
+    //全量加载空间索引、重建GEO索引每批查询的店铺数量
+    private static final int SHOP_GEO_INDEX_BATCH_SIZE = 1000;
+
+    //全量重建GEO索引时临时key的后缀
+    private static final String SHOP_GEO_REBUILD_SUFFIX = ":rebuild";
+
+    //缓存预热每批查询的店铺数量
+    private static final int SHOP_WARM_UP_BATCH_SIZE = 200;
 
     /**
      * 缓存击穿问题：逻辑过期方法
@@ -225,6 +541,23 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
     // }
 
 
+    /**
+     * 新增商铺信息
+     * @param shop 商铺数据
+     * @return 商铺id
+     */
+    @Transactional
+    public Result saveShop(Shop shop) {
+        // 写入数据库
+        save(shop);
+
+        //事务提交后同步空间索引和redis GEO
+        afterCommit(() -> onShopChanged(shop.getId(), null));
+
+        // 返回店铺id
+        return Result.ok(shop.getId());
+    }
+
     /**
      * 更新商铺信息
      * @param shop 商铺数据
@@ -237,14 +570,235 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
             return Result.fail("店铺id不能为空");
         }
 
+        //记录修改前的类型，类型变化时需要从旧类型的GEO集合中删除
+        Shop old = query().select("id", "type_id").eq("id", id).one();
+        Long oldTypeId = old == null ? null : old.getTypeId();
+
         //更新数据库
         updateById(shop);
 
-        //删除缓存
-        stringRedisTemplate.delete(RedisConstants.CACHE_SHOP_KEY + shop.getId());
+        if(packedEnabled){
+            //事务提交后删除缓存(失败重试，延迟双删)
+            cacheInvalidator.evictPackedAfterCommit(RedisConstants.CACHE_SHOP_KEY, id);
+        }else {
+            //事务提交后重新查询并覆盖逻辑过期的缓存(失败重试，延迟再覆盖一次)，热点数据不会因为删除而集中回源
+            String key = RedisConstants.CACHE_SHOP_KEY + id;
+            cacheInvalidator.refreshAfterCommit(key, () -> {
+                Shop latest = getById(id);
+                if (latest == null) {
+                    cacheClient.delete(key);
+                } else {
+                    cacheClient.refreshWithLogicalExpire(key, latest, RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
+                }
+            });
+        }
+
+        //事务提交后同步空间索引和redis GEO(位置或类型可能变化)
+        afterCommit(() -> onShopChanged(id, oldTypeId));
 
         return Result.ok();
     }
+
+    /**
+     * 全量加载本地空间索引：按id键集分页，只查询id、类型和坐标
+     * @return 加载的店铺数量
+     */
+    public synchronized int loadShopGeoIndex() {
+        //从这里开始记录增量修改，读取数据库期间提交的修改在替换网格后重新应用
+        shopGeoIndex.beginLoad();
+        List<Shop> shops = new ArrayList<>();
+        Set<Long> changed;
+        try {
+            long lastId = 0;
+            while (true) {
+                List<Shop> batch = query().select("id", "type_id", "x", "y")
+                        .gt("id", lastId).orderByAsc("id")
+                        .last("LIMIT " + SHOP_GEO_INDEX_BATCH_SIZE).list();
+                shops.addAll(batch);
+                if (batch.size() < SHOP_GEO_INDEX_BATCH_SIZE) {
+                    break;
+                }
+                lastId = batch.get(batch.size() - 1).getId();
+            }
+            changed = shopGeoIndex.load(shops);
+        } catch (RuntimeException e) {
+            shopGeoIndex.abortLoad();
+            throw e;
+        }
+        changed.forEach(this::refreshGeoIndex);
+        return shops.size();
+    }
+
+    /**
+     * 兜底：定时全量重新加载本地空间索引，防止丢失变更通知
+     */
+    @Scheduled(initialDelay = 600000, fixedDelay = 600000)
+    public void reloadShopGeoIndex() {
+        loadShopGeoIndex();
+    }
+
+    /**
+     * 全量重建redis GEO索引：按id键集分页流式读取，每批通过pipeline写入临时key，
+     * 全部写完后RENAME替换正式key，再删除已没有店铺的类型的正式key，内存中只保留一批数据，重建期间查询不受影响
+     * 通过redisson分布式锁(看门狗自动续期)保证同一时刻只有一个实例在重建
+     * 重建期间提交的增量修改可能被覆盖，必要时重新执行一次
+     * @return 写入的店铺数量
+     */
+    public Result rebuildShopGeo() {
+        RLock lock = redissonClient.getLock(RedisConstants.LOCK_SHOP_GEO_REBUILD_KEY);
+        if (!lock.tryLock()) {
+            return Result.fail("GEO索引正在重建");
+        }
+        try {
+            Set<Long> typeIds = new HashSet<>();
+            int total = 0;
+            long lastId = 0;
+            while (true) {
+                List<Shop> batch = query().select("id", "type_id", "x", "y")
+                        .gt("id", lastId).orderByAsc("id")
+                        .last("LIMIT " + SHOP_GEO_INDEX_BATCH_SIZE).list();
+                //按类型分组，每个类型一次GEOADD
+                Map<Long, Map<String, Point>> locations = new HashMap<>();
+                for (Shop shop : batch) {
+                    if (shop.getTypeId() != null && shop.getX() != null && shop.getY() != null) {
+                        locations.computeIfAbsent(shop.getTypeId(), t -> new HashMap<>())
+                                .put(shop.getId().toString(), new Point(shop.getX(), shop.getY()));
+                    }
+                }
+                stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                    StringRedisConnection conn = (StringRedisConnection) connection;
+                    locations.forEach((typeId, members) -> {
+                        String tempKey = RedisConstants.SHOP_GEO_KEY + typeId + SHOP_GEO_REBUILD_SUFFIX;
+                        if (typeIds.add(typeId)) {
+                            //清理上次重建失败遗留的临时key
+                            conn.del(tempKey);
+                        }
+                        conn.geoAdd(tempKey, members);
+                    });
+                    return null;
+                });
+                total += batch.size();
+                if (batch.size() < SHOP_GEO_INDEX_BATCH_SIZE) {
+                    break;
+                }
+                lastId = batch.get(batch.size() - 1).getId();
+            }
+
+            //全部写完后替换正式key
+            for (Long typeId : typeIds) {
+                stringRedisTemplate.rename(RedisConstants.SHOP_GEO_KEY + typeId + SHOP_GEO_REBUILD_SUFFIX,
+                        RedisConstants.SHOP_GEO_KEY + typeId);
+            }
+            int removed = removeStaleShopGeo(typeIds);
+            log.info("店铺GEO索引重建完成，店铺数量:{}，类型数量:{}，删除过期类型key:{}", total, typeIds.size(), removed);
+            return Result.ok(total);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 删除本次重建没有写入的类型的GEO key(该类型已没有店铺)，以及上次重建失败遗留的临时key
+     * @param typeIds 本次重建写入的类型
+     * @return 删除的key数量
+     */
+    private int removeStaleShopGeo(Set<Long> typeIds) {
+        ScanOptions options = ScanOptions.scanOptions().match(RedisConstants.SHOP_GEO_KEY + "*").count(200).build();
+        List<String> stale = new ArrayList<>();
+        stringRedisTemplate.execute((RedisCallback<Void>) connection -> {
+            try (Cursor<byte[]> cursor = connection.scan(options)) {
+                while (cursor.hasNext()) {
+                    String key = new String(cursor.next(), StandardCharsets.UTF_8);
+                    String typeId = key.substring(RedisConstants.SHOP_GEO_KEY.length());
+                    if (typeId.endsWith(SHOP_GEO_REBUILD_SUFFIX)
+                            || (NumberUtil.isLong(typeId) && !typeIds.contains(Long.valueOf(typeId)))) {
+                        stale.add(key);
+                    }
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            return null;
+        });
+        if (!stale.isEmpty()) {
+            stringRedisTemplate.unlink(stale);
+        }
+        return stale.size();
+    }
+
+    /**
+     * 店铺变更(事务提交后)：更新本实例的空间索引和redis GEO，再通知其他实例
+     * @param id 店铺id
+     * @param oldTypeId 修改前的类型，新增时为null
+     */
+    private void onShopChanged(Long id, Long oldTypeId) {
+        Shop shop = getById(id);
+        updateGeoIndex(id, shop);
+        syncRedisGeo(id, oldTypeId, shop);
+        try {
+            stringRedisTemplate.convertAndSend(RedisConstants.SHOP_CHANGED_CHANNEL, instanceId + ":" + id);
+        } catch (DataAccessException e) {
+            //其他实例等待定时全量加载
+            redisHealth.reportFailure(e);
+            log.warn("发送店铺变更通知失败，id:{}", id, e);
+        }
+    }
+
+    /**
+     * 同步redis GEO：类型变化时先从旧类型的集合中删除(ZREM)，再写入新位置(GEOADD)
+     */
+    private void syncRedisGeo(Long id, Long oldTypeId, Shop shop) {
+        if (!redisHealth.isAvailable()) {
+            log.warn("redis不可用，店铺GEO未同步，id:{}，需要全量重建", id);
+            return;
+        }
+        String member = id.toString();
+        try {
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection conn = (StringRedisConnection) connection;
+                if (oldTypeId != null && (shop == null || !oldTypeId.equals(shop.getTypeId()))) {
+                    conn.zRem(RedisConstants.SHOP_GEO_KEY + oldTypeId, member);
+                }
+                if (shop != null && shop.getTypeId() != null && shop.getX() != null && shop.getY() != null) {
+                    conn.geoAdd(RedisConstants.SHOP_GEO_KEY + shop.getTypeId(), new Point(shop.getX(), shop.getY()), member);
+                }
+                return null;
+            });
+        } catch (DataAccessException e) {
+            redisHealth.reportFailure(e);
+            log.warn("店铺GEO同步失败，id:{}，需要全量重建", id, e);
+        }
+    }
+
+    /**
+     * 从数据库重新读取店铺位置，更新本地空间索引
+     */
+    private void refreshGeoIndex(Long id) {
+        updateGeoIndex(id, getById(id));
+    }
+
+    private void updateGeoIndex(Long id, Shop shop) {
+        if (shop == null) {
+            shopGeoIndex.remove(id);
+        } else {
+            shopGeoIndex.upsert(shop);
+        }
+    }
+
+    /**
+     * 在当前事务提交之后执行；没有事务时立即执行
+     */
+    private void afterCommit(Runnable action) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            action.run();
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            public void afterCommit() {
+                action.run();
+            }
+        });
+    }
     //
     // /**
     //  * 尝试获取锁
@@ -265,6 +819,53 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
     //     stringRedisTemplate.delete(key);
     // }
 
+    /**
+     * 缓存预热：按销量从高到低选出top-N店铺，键集分页(sold, id)分批查询数据库，
+     * 每批通过pipeline写入逻辑过期缓存，避免热点店铺在启动后集中加锁回源
+     * @param topN 预热的店铺数量
+     * @return 实际预热的店铺数量
+     */
+    public int warmUpShopCache(int topN) {
+        if(packedEnabled){
+            //分桶存储模式是旁路缓存，未命中时按需回填，不需要预热
+            return 0;
+        }
+        int warmed = 0;
+        Integer lastSold = null;
+        Long lastId = null;
+        while (warmed < topN) {
+            int size = Math.min(SHOP_WARM_UP_BATCH_SIZE, topN - warmed);
+            //键集分页：where sold < lastSold or (sold = lastSold and id > lastId)
+            QueryChainWrapper<Shop> wrapper = query();
+            if (lastId != null) {
+                Integer sold = lastSold;
+                Long id = lastId;
+                wrapper.and(w -> w.lt("sold", sold).or(o -> o.eq("sold", sold).gt("id", id)));
+            }
+            List<Shop> shops = wrapper.orderByDesc("sold").orderByAsc("id")
+                    .last("LIMIT " + size).list();
+            if (shops.isEmpty()) {
+                break;
+            }
+
+            //pipeline批量写入逻辑过期缓存
+            Map<String, Shop> values = new HashMap<>(shops.size());
+            for (Shop shop : shops) {
+                values.put(RedisConstants.CACHE_SHOP_KEY + shop.getId(), shop);
+            }
+            cacheClient.setWithLogicalExpireBatch(values, RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
+
+            warmed += shops.size();
+            Shop last = shops.get(shops.size() - 1);
+            lastSold = last.getSold();
+            lastId = last.getId();
+            if (shops.size() < size) {
+                break;
+            }
+        }
+        return warmed;
+    }
+
     /**
      * 提前保存店铺数据到redis-预热
      * @param id 店铺id
@@ -274,11 +875,7 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         //查询店铺数据
         Shop shop = getById(id);
         Thread.sleep(200);
-        //封装逻辑过期时间
-        RedisData redisData = new RedisData();
-        redisData.setData(shop);
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(expireSeconds));
-        //写入redis
-        stringRedisTemplate.opsForValue().set(RedisConstants.CACHE_SHOP_KEY + id, JSONUtil.toJsonStr(redisData));
+        //封装逻辑过期时间并写入redis，与查询使用同一种存储格式
+        cacheClient.setWithLogicalExpire(RedisConstants.CACHE_SHOP_KEY + id, shop, expireSeconds, TimeUnit.SECONDS);
     }
 }
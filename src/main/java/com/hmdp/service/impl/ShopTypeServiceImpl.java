@@ -2,18 +2,28 @@ package com.hmdp.service.impl;
 
 import cn.hutool.core.util.StrUtil;
 import cn.hutool.json.JSONUtil;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.hmdp.dto.Result;
+import com.hmdp.dto.ShopTypeSnapshot;
 import com.hmdp.entity.ShopType;
 import com.hmdp.mapper.ShopTypeMapper;
 import com.hmdp.service.IShopTypeService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.RedisHealthDetector;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.dao.DataAccessException;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 import org.springframework.util.CollectionUtils;
+import org.springframework.util.DigestUtils;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
-import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 
@@ -25,40 +35,147 @@ import java.util.List;
  * @author 虎哥
  * @since 2021-12-22
  */
+@Slf4j
 @Service
 public class ShopTypeServiceImpl extends ServiceImpl<ShopTypeMapper, ShopType> implements IShopTypeService {
 
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private RedisHealthDetector redisHealthDetector;
+
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    @Resource
+    private ObjectMapper objectMapper;
+
+    //当前的类型列表快照，变更通知后整体替换
+    private volatile ShopTypeSnapshot snapshot;
+
+    //订阅类型变更通知
+    @PostConstruct
+    private void init() {
+        redisMessageListenerContainer.addMessageListener((message, pattern) -> refreshSnapshot(),
+                new ChannelTopic(RedisConstants.SHOP_TYPE_CHANGED_CHANNEL));
+    }
+
     /**
-     * 查询所有商铺类型(添加缓存)
+     * 查询所有商铺类型(内存快照)
      * @return 商铺类型列表
      */
     public Result queryTypeList() {
-        //查询缓存
-        String key = RedisConstants.CACHE_SHOP_TYPE_KEY;
-        String shopTypeList = stringRedisTemplate.opsForValue().get(key);
-
-        //判断缓存是否命中
-         if(StrUtil.isNotBlank(shopTypeList)){
-             //缓存命中
-             List<ShopType> shopTypes = JSONUtil.toList(shopTypeList, ShopType.class);
-             //根据sort字段排序
-             Collections.sort(shopTypes, (o1, o2) -> o1.getSort() - o2.getSort());
-             return Result.ok(shopTypes);
-         }
-
-         //缓存未命中，查询数据库
-        List<ShopType> shopTypes = query().orderByAsc("sort").list();
-         //判断数据库中是否有数据
-        if(CollectionUtils.isEmpty(shopTypes)){
-            //数据库中无数据，返回错误
+        ShopTypeSnapshot current = getTypeSnapshot();
+        if (CollectionUtils.isEmpty(current.getTypes())) {
             return Result.fail("商铺类型不存在");
         }
-        //存入缓存，返回数据
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(shopTypes));
+        return Result.ok(current.getTypes());
+    }
+
+    /**
+     * 查询商铺类型列表快照，首次访问时加载
+     * @return 快照
+     */
+    public ShopTypeSnapshot getTypeSnapshot() {
+        ShopTypeSnapshot current = snapshot;
+        if (current == null) {
+            synchronized (this) {
+                current = snapshot;
+                if (current == null) {
+                    current = loadSnapshot();
+                    snapshot = current;
+                }
+            }
+        }
+        return current;
+    }
+
+    /**
+     * 商铺类型变更通知：删除redis缓存，递增版本号，并广播给所有实例刷新快照
+     */
+    public void notifyTypeChanged() {
+        redisHealthDetector.ensureAvailable();
+        stringRedisTemplate.delete(RedisConstants.CACHE_SHOP_TYPE_KEY);
+        Long version = stringRedisTemplate.opsForValue().increment(RedisConstants.CACHE_SHOP_TYPE_VERSION_KEY);
+        stringRedisTemplate.convertAndSend(RedisConstants.SHOP_TYPE_CHANGED_CHANNEL, String.valueOf(version));
+    }
+
+    /**
+     * 兜底：定时比较版本号，防止丢失变更通知
+     */
+    @Scheduled(fixedDelayString = "${hmdp.cache.shop-type.version-check-interval-millis:60000}")
+    public void checkVersion() {
+        ShopTypeSnapshot current = snapshot;
+        if (current == null || !redisHealthDetector.isAvailable()) {
+            return;
+        }
+        try {
+            if (current.getVersion() != currentVersion()) {
+                refreshSnapshot();
+            }
+        } catch (DataAccessException e) {
+            redisHealthDetector.reportFailure(e);
+        }
+    }
+
+    /**
+     * 重新加载快照，加载失败时保留旧快照
+     */
+    private void refreshSnapshot() {
+        try {
+            snapshot = loadSnapshot();
+        } catch (Exception e) {
+            log.error("刷新商铺类型快照失败", e);
+        }
+    }
+
+    /**
+     * 加载快照：优先读redis缓存，未命中或redis不可用时查询数据库，并预先序列化响应体
+     * @return 快照
+     */
+    private ShopTypeSnapshot loadSnapshot() {
+        long version = 0;
+        List<ShopType> shopTypes = null;
+        boolean redisAvailable = redisHealthDetector.isAvailable();
+        if (redisAvailable) {
+            try {
+                version = currentVersion();
+                String shopTypeList = stringRedisTemplate.opsForValue().get(RedisConstants.CACHE_SHOP_TYPE_KEY);
+                if (StrUtil.isNotBlank(shopTypeList)) {
+                    shopTypes = JSONUtil.toList(shopTypeList, ShopType.class);
+                    //根据sort字段排序
+                    shopTypes.sort((o1, o2) -> o1.getSort() - o2.getSort());
+                }
+            } catch (DataAccessException e) {
+                redisHealthDetector.reportFailure(e);
+                redisAvailable = false;
+            }
+        }
+
+        if (shopTypes == null) {
+            //缓存未命中，查询数据库
+            shopTypes = query().orderByAsc("sort").list();
+            if (redisAvailable && !CollectionUtils.isEmpty(shopTypes)) {
+                //存入缓存
+                stringRedisTemplate.opsForValue().set(RedisConstants.CACHE_SHOP_TYPE_KEY, JSONUtil.toJsonStr(shopTypes));
+            }
+        }
+
+        List<ShopType> types = Collections.unmodifiableList(shopTypes);
+        Result result = CollectionUtils.isEmpty(types) ? Result.fail("商铺类型不存在") : Result.ok(types);
+        byte[] body;
+        try {
+            body = objectMapper.writeValueAsBytes(result);
+        } catch (JsonProcessingException e) {
+            throw new RuntimeException(e);
+        }
+        String etag = "\"" + version + "-" + DigestUtils.md5DigestAsHex(body) + "\"";
+        return new ShopTypeSnapshot(version, types, body, etag);
+    }
 
-        return Result.ok(shopTypes);
+    private long currentVersion() {
+        String version = stringRedisTemplate.opsForValue().get(RedisConstants.CACHE_SHOP_TYPE_VERSION_KEY);
+        return StrUtil.isBlank(version) ? 0L : Long.parseLong(version);
     }
 }
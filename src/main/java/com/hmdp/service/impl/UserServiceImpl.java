@@ -11,7 +11,9 @@ import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.User;
 import com.hmdp.mapper.UserMapper;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.CacheClient;
 import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.RedisHealthDetector;
 import com.hmdp.utils.RegexUtils;
 import com.hmdp.utils.SystemConstants;
 import com.hmdp.utils.UserHolder;
@@ -24,10 +26,12 @@ import javax.annotation.Resource;
 import javax.servlet.http.HttpSession;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 /**
  * <p>
@@ -44,6 +48,12 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private RedisHealthDetector redisHealthDetector;
+
     /**
      * 发送验证码
      *
@@ -58,6 +68,9 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
             return Result.fail("手机号格式错误!");
         }
 
+        //验证码保存在redis，redis不可用时快速失败
+        redisHealthDetector.ensureAvailable();
+
         //符合，生成验证码
         String code = RandomUtil.randomNumbers(6);
 
@@ -86,7 +99,8 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
             return Result.fail("手机号格式错误!");
         }
 
-        //从redis获取验证码并校验
+        //从redis获取验证码并校验，redis不可用时快速失败
+        redisHealthDetector.ensureAvailable();
         String cacheCode = stringRedisTemplate.opsForValue().get(RedisConstants.LOGIN_CODE_KEY + phone);
         String code = loginForm.getCode();
         if (cacheCode == null || !cacheCode.toString().equals(code)) {
@@ -127,6 +141,8 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
      * @return {@link Result}
      */
     public Result sign() {
+        //签到记录保存在redis，redis不可用时快速失败
+        redisHealthDetector.ensureAvailable();
         ///获取当前登录用户
         Long userId = UserHolder.getUser().getId();
         //获取日期
@@ -186,6 +202,26 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
         return Result.ok(count);
     }
 
+    /**
+     * 批量查询用户公开信息：一次MGET查缓存，未命中的用户一次IN查询数据库
+     *
+     * @param ids 用户id集合
+     * @return 用户id -> 用户信息
+     */
+    public Map<Long, UserDTO> queryUserDTOs(Collection<Long> ids) {
+        return cacheClient.queryBatch(RedisConstants.CACHE_USER_KEY, ids, UserDTO.class,
+                this::loadUserDTOs, RedisConstants.CACHE_USER_TTL, TimeUnit.MINUTES);
+    }
+
+    /**
+     * 根据id批量查询数据库中的用户 select * from tb_user where id in (...)
+     */
+    private Map<Long, UserDTO> loadUserDTOs(Collection<Long> ids) {
+        return listByIds(ids).stream()
+                .map(user -> BeanUtil.copyProperties(user, UserDTO.class))
+                .collect(Collectors.toMap(UserDTO::getId, userDTO -> userDTO));
+    }
+
     private User createUserWithPhone(String phone) {
         //创建用户
         User user = new User();
@@ -6,6 +6,7 @@ import com.hmdp.mapper.VoucherOrderMapper;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherOrderService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.RedisHealthDetector;
 import com.hmdp.utils.RedisIdWorker;
 import com.hmdp.utils.UserHolder;
 import lombok.extern.slf4j.Slf4j;
@@ -50,6 +51,9 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     @Resource
     private RedissonClient redissonClient;
 
+    @Resource
+    private RedisHealthDetector redisHealthDetector;
+
     //导入lua脚本
     private static final DefaultRedisScript<Long> SECKILL_SCRIPT;
     static {
@@ -111,6 +115,9 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
      * @return
      */
     public Result seckillVoucher(Long voucherId) {
+        //秒杀资格判断依赖redis，redis不可用时快速失败
+        redisHealthDetector.ensureAvailable();
+
         //获取代理对象
         proxy = (IVoucherOrderService) AopContext.currentProxy();
 
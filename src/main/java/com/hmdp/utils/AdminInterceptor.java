@@ -0,0 +1,41 @@
+package com.hmdp.utils;
+
+import com.hmdp.dto.UserDTO;
+import org.springframework.web.servlet.HandlerInterceptor;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.util.Set;
+
+public class AdminInterceptor implements HandlerInterceptor {
+
+    //允许调用运维接口的用户id
+    private final Set<Long> adminUserIds;
+
+    public AdminInterceptor(Set<Long> adminUserIds) {
+        this.adminUserIds = adminUserIds;
+    }
+
+    /**
+     * 管理员检查：运维接口(缓存预热、批量失效、GEO重建、键空间审计等)只允许配置的管理员调用
+     * @param request
+     * @param response
+     * @param handler
+     * @return
+     * @throws Exception
+     */
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+        UserDTO user = UserHolder.getUser();
+        if (user == null) {
+            //未登录
+            response.setStatus(401);
+            return false;
+        }
+        if (!adminUserIds.contains(user.getId())) {
+            //不是管理员
+            response.setStatus(403);
+            return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,146 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import com.hmdp.mapper.BlogMapper;
+import com.hmdp.service.IBlogService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 点赞数的异步写回：点赞时只在redis的hash中累加增量(blog:liked:delta:{分片号})，定时批量写回tb_blog.liked
+ * 1. 逐个分片写回，写回前把增量hash RENAME为 blog:liked:delta:flushing:{分片号}，之后的点赞累加到新的增量hash，互不影响
+ * 2. 每批一条UPDATE，每篇笔记每个周期只更新一次，写入成功后从flushing中删除这一批
+ * 3. 宕机后flushing中剩余的增量在下次写回时优先处理，不会丢失；
+ *    每次交换对应一个批次id，UPDATE时在同一个事务中记录(批次id, 笔记id)，
+ *    UPDATE提交之后、HDEL之前宕机时，重复写回会跳过已记录的笔记，不会重复累加
+ * 4. flushing全部写回后删除该批次的记录
+ * 5. 点赞数保存在redis(blog:liked:count:{分片号})，点赞时与增量一起原子增减，写回不修改它；
+ *    首次访问时按 数据库中的点赞数 + 两个hash中尚未写回的增量 初始化，flushing中已记录为写回的笔记不再累加
+ */
+@Slf4j
+@Component
+public class BlogLikeFlusher {
+
+    //写回锁的名称，多个实例同时只有一个执行写回
+    private static final String LOCK_NAME = "blog:liked:flush";
+
+    //写回锁的超时时间(秒)
+    private static final int LOCK_TIMEOUT_SECONDS = 60;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private BlogMapper blogMapper;
+
+    @Resource
+    private IBlogService blogService;
+
+    @Resource
+    private RedisHealthDetector redisHealth;
+
+    @Value("${hmdp.blog.like-flush.batch-size:500}")
+    private int batchSize;
+
+    @Scheduled(fixedDelayString = "${hmdp.blog.like-flush.interval-millis:5000}")
+    public void flush() {
+        if (!redisHealth.isAvailable()) {
+            return;
+        }
+        SimpleRedisLock lock = new SimpleRedisLock(LOCK_NAME, stringRedisTemplate);
+        if (!lock.tryLock(LOCK_TIMEOUT_SECONDS)) {
+            return;
+        }
+        try {
+            int flushed = 0;
+            for (int shard = 0; shard < RedisConstants.BLOG_LIKED_SHARDS; shard++) {
+                try {
+                    flushed += flushShard(shard);
+                } catch (Exception e) {
+                    //一个分片失败不影响其他分片，遗留的增量下次优先处理
+                    log.error("点赞数写回数据库失败，分片:{}", shard, e);
+                }
+            }
+            log.debug("点赞数写回数据库，笔记数量:{}", flushed);
+        } finally {
+            lock.unLock();
+        }
+    }
+
+    /**
+     * 写回一个分片的增量
+     * @return 写回的笔记数量
+     */
+    private int flushShard(int shard) {
+        String deltaKey = BlogLikeKeys.delta(shard);
+        String flushingKey = BlogLikeKeys.flushing(shard);
+        String flushIdKey = BlogLikeKeys.flushId(shard);
+        //上次写回中途失败遗留的增量优先处理，处理完之前不交换新的增量
+        if (!Boolean.TRUE.equals(stringRedisTemplate.hasKey(flushingKey))) {
+            //上一批次已全部写回但没来得及清理，先清理，避免新的批次沿用旧的批次id
+            String previous = stringRedisTemplate.opsForValue().get(flushIdKey);
+            if (previous != null) {
+                finishFlush(shard, previous);
+            }
+            if (!Boolean.TRUE.equals(stringRedisTemplate.hasKey(deltaKey))) {
+                return 0;
+            }
+            //同一个hash tag，集群中RENAME不会CROSSSLOT
+            stringRedisTemplate.rename(deltaKey, flushingKey);
+        }
+        //交换后宕机时批次id可能还没有写入，此时还没有写回任何笔记，生成新的即可
+        stringRedisTemplate.opsForValue().setIfAbsent(flushIdKey, UUID.randomUUID().toString(true));
+        String flushId = stringRedisTemplate.opsForValue().get(flushIdKey);
+        int flushed = flushPending(shard, flushId);
+        //flushing已全部写回(hash为空时key自动删除)
+        finishFlush(shard, flushId);
+        return flushed;
+    }
+
+    /**
+     * 分批写回分片flushing中的增量
+     * @param flushId 批次id
+     * @return 写回的笔记数量
+     */
+    private int flushPending(int shard, String flushId) {
+        Map<Object, Object> pending = stringRedisTemplate.opsForHash().entries(BlogLikeKeys.flushing(shard));
+        Map<Long, Long> batch = new HashMap<>();
+        int flushed = 0;
+        for (Map.Entry<Object, Object> entry : pending.entrySet()) {
+            batch.put(Long.valueOf((String) entry.getKey()), Long.valueOf((String) entry.getValue()));
+            if (batch.size() >= batchSize) {
+                flushed += flushBatch(shard, flushId, batch);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            flushed += flushBatch(shard, flushId, batch);
+        }
+        return flushed;
+    }
+
+    /**
+     * 批次全部写回后清理：先删除数据库中的记录，最后删除批次id
+     */
+    private void finishFlush(int shard, String flushId) {
+        blogMapper.deleteFlushRecords(flushId);
+        stringRedisTemplate.delete(BlogLikeKeys.flushId(shard));
+    }
+
+    private int flushBatch(int shard, String flushId, Map<Long, Long> batch) {
+        //增量为0(点赞后又取消)的不需要更新数据库
+        Map<Long, Long> deltas = new HashMap<>(batch);
+        deltas.values().removeIf(delta -> delta == 0);
+        int flushed = deltas.isEmpty() ? 0 : blogService.flushLikedBatch(flushId, deltas);
+        Object[] fields = batch.keySet().stream().map(String::valueOf).toArray();
+        stringRedisTemplate.opsForHash().delete(BlogLikeKeys.flushing(shard), fields);
+        return flushed;
+    }
+}
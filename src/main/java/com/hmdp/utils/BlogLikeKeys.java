@@ -0,0 +1,56 @@
+package com.hmdp.utils;
+
+/**
+ * 点赞相关的redis key
+ * 按 笔记id % BLOG_LIKED_SHARDS 分片，分片号作为hash tag：同一篇笔记的点赞用户集合、增量hash、
+ * 写回中的增量hash落在同一个slot，lua脚本在redis集群中不会CROSSSLOT；
+ * 增量hash拆成多个分片，不再是所有点赞都写入的单个热点key
+ */
+public class BlogLikeKeys {
+
+    /**
+     * 笔记所在的分片
+     */
+    public static int shardOf(Long blogId) {
+        return (int) (blogId % RedisConstants.BLOG_LIKED_SHARDS);
+    }
+
+    /**
+     * 笔记的点赞用户集合(zset：用户id -> 点赞时间) blog:liked:{分片号}:笔记id
+     */
+    public static String liked(Long blogId) {
+        return RedisConstants.BLOG_LIKED_KEY + tag(shardOf(blogId)) + ":" + blogId;
+    }
+
+    /**
+     * 分片的点赞数增量(hash：笔记id -> 增量)
+     */
+    public static String delta(int shard) {
+        return RedisConstants.BLOG_LIKED_DELTA_KEY + tag(shard);
+    }
+
+    /**
+     * 分片正在写回数据库的增量
+     */
+    public static String flushing(int shard) {
+        return RedisConstants.BLOG_LIKED_FLUSHING_KEY + tag(shard);
+    }
+
+    /**
+     * 分片正在写回的批次id
+     */
+    public static String flushId(int shard) {
+        return RedisConstants.BLOG_LIKED_FLUSH_ID_KEY + tag(shard);
+    }
+
+    /**
+     * 分片的点赞数(hash：笔记id -> 点赞数)
+     */
+    public static String count(int shard) {
+        return RedisConstants.BLOG_LIKED_COUNT_KEY + tag(shard);
+    }
+
+    private static String tag(int shard) {
+        return "{" + shard + "}";
+    }
+}
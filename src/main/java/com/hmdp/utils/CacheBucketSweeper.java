@@ -0,0 +1,106 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 分桶存储模式的过期清理：hash的field没有独立的过期时间，
+ * 定期SCAN出所有桶，再HSCAN每个桶，删除逻辑已过期的条目
+ */
+@Slf4j
+@Component
+public class CacheBucketSweeper {
+
+    //每次SCAN/HSCAN返回的建议数量
+    private static final long SCAN_COUNT = 200;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private RedisHealthDetector redisHealth;
+
+    @Scheduled(fixedDelayString = "${hmdp.cache.packed.sweep-interval-millis:60000}")
+    public void sweep() {
+        if (!redisHealth.isAvailable()) {
+            return;
+        }
+        for (String keyPrefix : cacheClient.getPackedPrefixes()) {
+            try {
+                int removed = sweep(keyPrefix);
+                if (removed > 0) {
+                    log.debug("清理分桶缓存过期条目，前缀:{}，数量:{}", keyPrefix, removed);
+                }
+            } catch (DataAccessException e) {
+                redisHealth.reportFailure(e);
+                log.warn("清理分桶缓存失败，前缀:{}，{}", keyPrefix, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * 清理一个前缀下所有桶内已过期的条目
+     * 在HSCAN和HDEL之间被重新写入的条目可能被误删，只会多一次未命中
+     * @return 删除的条目数量
+     */
+    private int sweep(String keyPrefix) {
+        List<String> buckets = scanBuckets(keyPrefix + RedisConstants.CACHE_BUCKET_INFIX + "*");
+        long now = System.currentTimeMillis();
+        int removed = 0;
+        for (String bucketKey : buckets) {
+            List<Object> expired = new ArrayList<>();
+            ScanOptions options = ScanOptions.scanOptions().count(SCAN_COUNT).build();
+            try (Cursor<Map.Entry<Object, Object>> cursor = stringRedisTemplate.opsForHash().scan(bucketKey, options)) {
+                while (cursor.hasNext()) {
+                    Map.Entry<Object, Object> entry = cursor.next();
+                    CachePayload payload = CachePayload.decode((String) entry.getValue());
+                    if (payload == null || payload.getExpireAt() <= now) {
+                        expired.add(entry.getKey());
+                    }
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            if (!expired.isEmpty()) {
+                stringRedisTemplate.opsForHash().delete(bucketKey, expired.toArray());
+                removed += expired.size();
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * SCAN出匹配的桶key，桶的数量是 id总数 / 桶大小，可以全部放在内存里
+     */
+    private List<String> scanBuckets(String pattern) {
+        ScanOptions options = ScanOptions.scanOptions().match(pattern).count(SCAN_COUNT).build();
+        List<String> buckets = new ArrayList<>();
+        stringRedisTemplate.execute((RedisCallback<Void>) connection -> {
+            try (Cursor<byte[]> cursor = connection.scan(options)) {
+                while (cursor.hasNext()) {
+                    buckets.add(new String(cursor.next(), StandardCharsets.UTF_8));
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            return null;
+        });
+        return buckets;
+    }
+}
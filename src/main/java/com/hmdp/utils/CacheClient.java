@@ -1,21 +1,33 @@
 package com.hmdp.utils;
 
+import cn.hutool.core.lang.UUID;
 import cn.hutool.core.util.BooleanUtil;
 import cn.hutool.core.util.StrUtil;
 import cn.hutool.json.JSONObject;
 import cn.hutool.json.JSONUtil;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.hmdp.entity.Shop;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Component;
 
 import javax.annotation.Resource;
-import java.time.LocalDateTime;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.time.ZoneId;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
 
 @Component
 @Slf4j
@@ -24,23 +36,163 @@ public class CacheClient {
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private HotKeyDetector hotKeyDetector;
+
+    @Resource
+    private CacheMetrics cacheMetrics;
+
+    @Resource
+    private CacheRebuildScheduler rebuildScheduler;
+
+    @Resource
+    private DbFallbackGuard dbFallbackGuard;
+
+    @Resource
+    private RedisHealthDetector redisHealth;
+
+    @Resource
+    private ObjectMapper objectMapper;
+
+    //热点key的本地副本，只缓存redis中的原始字符串，过期时间很短
+    private final LocalCache<String> hotKeyCache = new LocalCache<>(HOT_KEY_CACHE_SIZE);
+
+    private static final int HOT_KEY_CACHE_SIZE = 1000;
+
+    @Value("${hmdp.cache.hot-key.local-ttl-millis:1000}")
+    private long hotKeyLocalTtl;
+
+    //redis不可用时使用的本地旧数据，只保留配置的前缀(店铺等读多写少的数据)，存redis中的原始字符串
+    private final LocalCache<String> staleCache = new LocalCache<>(STALE_CACHE_SIZE);
+
+    private static final int STALE_CACHE_SIZE = 10000;
+
+    @Value("${hmdp.redis.degrade.stale-prefixes:cache:shop:}")
+    private String[] stalePrefixes;
+
+    @Value("${hmdp.redis.degrade.stale-ttl-minutes:30}")
+    private long staleTtlMinutes;
+
+    //分桶存储模式：每个桶存放的id数量
+    @Value("${hmdp.cache.packed.bucket-size:1000}")
+    private long packedBucketSize;
+
+    //分桶存储模式：桶的过期时间，每次写入时续期
+    @Value("${hmdp.cache.packed.bucket-ttl-minutes:60}")
+    private long packedBucketTtlMinutes;
+
+    //使用过分桶存储的缓存前缀，供CacheBucketSweeper清理
+    private final Set<String> packedPrefixes = ConcurrentHashMap.newKeySet();
+
     /**
      * 将任意Java对象序列化为JSON字符串后存储到Redis缓存中，并设置过期时间
+     * 过期时间会附加随机抖动，避免同一批写入的key同时失效
      */
     public void set(String key, Object value, Long time, TimeUnit unit){
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(value), time, unit);
+        String json = JSONUtil.toJsonStr(value);
+        write(() -> stringRedisTemplate.opsForValue().set(key, json, jitter(unit.toSeconds(time)), TimeUnit.SECONDS));
+        hotKeyCache.remove(key);
+        keepStale(key, json);
     }
 
     /**
      * 使用逻辑过期的方式将任意Java对象序列化为JSON字符串后存储到Redis缓存中
      */
     public void setWithLogicalExpire(String key, Object value, Long time, TimeUnit unit){
-        //设置逻辑过期
-        RedisData redisData = new RedisData();
-        redisData.setData(value);
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(unit.toSeconds(time)));
+        setWithLogicalExpire(key, value, time, unit, null);
+    }
+
+    /**
+     * 数据修改后用最新数据覆盖逻辑过期的缓存(逻辑过期的缓存未命中时不回源，不能用删除来失效)
+     * 与set不同，写入失败时抛出异常，由调用方重试
+     */
+    public void refreshWithLogicalExpire(String key, Object value, Long time, TimeUnit unit){
+        String json = CachePayload.encode(expireAt(time, unit), null, render(value));
+        try {
+            stringRedisTemplate.opsForValue().set(key, json);
+        } catch (DataAccessException e) {
+            redisHealth.reportFailure(e);
+            throw e;
+        }
+        hotKeyCache.remove(key);
+        keepStale(key, json);
+    }
+
+    /**
+     * 使用逻辑过期的方式写入缓存，同时记录本次重建耗时
+     * @param delta 重建耗时(毫秒)，为空表示未知
+     */
+    private void setWithLogicalExpire(String key, Object value, Long time, TimeUnit unit, Long delta){
+        setRenderedWithLogicalExpire(key, render(value), time, unit, delta);
+    }
+
+    /**
+     * 写入已渲染好的数据：设置逻辑过期，过期时间附加随机抖动
+     * @param data 按接口响应格式渲染好的JSON
+     * @return 写入的缓存内容
+     */
+    private CachePayload setRenderedWithLogicalExpire(String key, String data, Long time, TimeUnit unit, Long delta){
+        CachePayload payload = new CachePayload(expireAt(time, unit), delta, data);
         //写入redis
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(redisData));
+        String json = CachePayload.encode(payload.getExpireAt(), delta, data);
+        write(() -> stringRedisTemplate.opsForValue().set(key, json));
+        hotKeyCache.remove(key);
+        keepStale(key, json);
+        return payload;
+    }
+
+    /**
+     * 使用逻辑过期的方式批量写入缓存，所有写入在一个pipeline中完成(用于缓存预热)
+     * @param values key -> 缓存数据
+     */
+    public void setWithLogicalExpireBatch(Map<String, ?> values, Long time, TimeUnit unit){
+        if(values.isEmpty()){
+            return;
+        }
+        //先在pipeline外渲染好，pipeline内只做写入
+        Map<String, String> rendered = new HashMap<>(values.size());
+        for (Map.Entry<String, ?> entry : values.entrySet()) {
+            //每个key单独计算抖动，避免预热的key同时过期
+            rendered.put(entry.getKey(), CachePayload.encode(expireAt(time, unit), null, render(entry.getValue())));
+        }
+        write(() -> stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            rendered.forEach(conn::set);
+            return null;
+        }));
+        values.keySet().forEach(hotKeyCache::remove);
+    }
+
+    /**
+     * 删除缓存，同时删除本地的热点副本
+     * @param key 缓存key
+     */
+    public void delete(String key){
+        hotKeyCache.remove(key);
+        staleCache.remove(key);
+        stringRedisTemplate.delete(key);
+    }
+
+    /**
+     * 删除本实例中指定前缀的本地副本(热点副本和降级用的旧数据)
+     * @param prefix 缓存key前缀
+     */
+    public void evictLocal(String prefix){
+        hotKeyCache.removeByPrefix(prefix);
+        staleCache.removeByPrefix(prefix);
+    }
+
+    /**
+     * 给过期时间附加[0, ttl * CACHE_TTL_JITTER_RATIO]的随机抖动
+     * @param seconds 原始过期时间(秒)
+     * @return 抖动后的过期时间(秒)
+     */
+    private long jitter(long seconds){
+        long bound = (long) (seconds * RedisConstants.CACHE_TTL_JITTER_RATIO);
+        if(bound <= 0){
+            return seconds;
+        }
+        return seconds + ThreadLocalRandom.current().nextLong(bound + 1);
     }
 
     /**
@@ -60,26 +212,29 @@ public class CacheClient {
         String key = keyPrefix + id;
 
         //从redis查询商铺信息
-        String json = stringRedisTemplate.opsForValue().get(key);
+        String json = get(key);
 
         //判断是否存在
         if(StrUtil.isNotBlank(json)){
             //存在，直接返回
+            cacheMetrics.record(keyPrefix, CacheMetrics.HIT);
             return JSONUtil.toBean(json, type);
         }
 
         //redis-缓存穿透: 判断命中的是否是空值
         if(json != null){  //是"" 而不是null
+            cacheMetrics.record(keyPrefix, CacheMetrics.NULL_HIT);
             return null;
         }
 
         //redis是null，而不是""，根据id查询数据库
-        R r = dbFallback.apply(id);
+        cacheMetrics.record(keyPrefix, CacheMetrics.MISS);
+        R r = load(keyPrefix, () -> dbFallback.apply(id));
 
         //redis是null，而不是"", 数据库不存在，直接返回错误
         if(r == null){
             //redis-缓存穿透：将空值写入redis
-            stringRedisTemplate.opsForValue().set(key, "", RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES);//2min
+            write(() -> stringRedisTemplate.opsForValue().set(key, "", RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES));//2min
 
             //返回错误信息
             return null;
@@ -91,83 +246,670 @@ public class CacheClient {
         return r;
     }
 
-    //自定义线程池
-    private static final ExecutorService CHCHE_REBUILD_EXECTURE = Executors.newFixedThreadPool(10);
+    /**
+     * 批量查询：一次MGET查询缓存，未命中的id通过一次批量查询数据库加载，再用pipeline回写缓存
+     * 数据库中也不存在的id会写入空值，防止缓存穿透
+     * @param keyPrefix 缓存键前缀
+     * @param ids 数据标识符集合
+     * @param type 返回值类型
+     * @param dbFallback 数据库批量查询函数，参数为未命中的id，返回 id -> 数据
+     * @param time 缓存过期时间
+     * @param unit 时间单位
+     * @param <R> 返回值泛型
+     * @param <ID> ID泛型
+     * @return id -> 查询结果，不存在的id不会出现在结果中
+     */
+    public <R, ID> Map<ID, R> queryBatch(String keyPrefix, Collection<ID> ids, Class<R> type, Function<Collection<ID>, Map<ID, R>> dbFallback, Long time, TimeUnit unit) {
+        Map<ID, R> result = new HashMap<>(ids.size());
+        if(ids.isEmpty()){
+            return result;
+        }
+        //去重，保持顺序与key一一对应
+        List<ID> idList = new ArrayList<>(new LinkedHashSet<>(ids));
+        List<String> keys = idList.stream().map(id -> keyPrefix + id).collect(Collectors.toList());
+
+        //热点key优先读本地副本，其余一次MGET查询redis
+        String[] jsons = readBatch(keys);
+
+        //收集未命中的id
+        List<ID> misses = new ArrayList<>();
+        int nullHits = 0;
+        for (int i = 0; i < idList.size(); i++) {
+            String json = jsons[i];
+            if(StrUtil.isNotBlank(json)){
+                //命中
+                result.put(idList.get(i), JSONUtil.toBean(json, type));
+            }else if(json == null){
+                //未命中，需要查询数据库
+                misses.add(idList.get(i));
+            }else {
+                //是""说明命中空值，直接跳过
+                nullHits++;
+            }
+        }
+        cacheMetrics.record(keyPrefix, CacheMetrics.HIT, result.size());
+        cacheMetrics.record(keyPrefix, CacheMetrics.NULL_HIT, nullHits);
+        cacheMetrics.record(keyPrefix, CacheMetrics.MISS, misses.size());
+        if(misses.isEmpty()){
+            return result;
+        }
+
+        //未命中的id一次性查询数据库
+        Map<ID, R> loaded = load(keyPrefix, () -> dbFallback.apply(misses));
+        if(loaded == null){
+            loaded = Collections.emptyMap();
+        }
+        result.putAll(loaded);
+
+        //pipeline批量回写redis
+        Map<String, String> values = new HashMap<>(misses.size());
+        for (ID id : misses) {
+            R r = loaded.get(id);
+            //数据库也不存在的写入空值，防止缓存穿透
+            values.put(keyPrefix + id, r == null ? "" : JSONUtil.toJsonStr(r));
+        }
+        write(() -> stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (Map.Entry<String, String> entry : values.entrySet()) {
+                long seconds = entry.getValue().isEmpty()
+                        ? TimeUnit.MINUTES.toSeconds(RedisConstants.CACHE_NULL_TTL) : jitter(unit.toSeconds(time));
+                conn.setEx(entry.getKey(), seconds, entry.getValue());
+            }
+            return null;
+        }));
+        values.forEach(this::keepStale);
+        return result;
+    }
+
+    /**
+     * 逻辑过期的批量查询：一次MGET查询缓存，不存在的id通过一次批量查询数据库加载并回写；
+     * 已逻辑过期的数据先返回旧值，所有过期的id合并成一个重建任务异步刷新
+     * 数据库中也不存在的id写入带真实过期时间的空值，防止缓存穿透
+     * @param keyPrefix 缓存键前缀
+     * @param ids 数据标识符集合
+     * @param type 返回值类型
+     * @param dbFallback 数据库批量查询函数，参数为需要加载的id，返回 id -> 数据
+     * @param time 逻辑过期时间
+     * @param unit 时间单位
+     * @return id -> 查询结果，不存在的id不会出现在结果中
+     */
+    public <R, ID> Map<ID, R> queryBatchWithLogicalExpire(String keyPrefix, Collection<ID> ids, Class<R> type, Function<Collection<ID>, Map<ID, R>> dbFallback, Long time, TimeUnit unit) {
+        Map<ID, R> result = new HashMap<>(ids.size());
+        if(ids.isEmpty()){
+            return result;
+        }
+        //去重，保持顺序与key一一对应
+        List<ID> idList = new ArrayList<>(new LinkedHashSet<>(ids));
+        List<String> keys = idList.stream().map(id -> keyPrefix + id).collect(Collectors.toList());
+        String[] jsons = readBatch(keys);
+
+        //区分命中、已过期和未命中
+        List<ID> misses = new ArrayList<>();
+        List<ID> stale = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < idList.size(); i++) {
+            if(StrUtil.isBlank(jsons[i])){
+                misses.add(idList.get(i));
+                continue;
+            }
+            CachePayload payload = decodePayload(jsons[i], type);
+            R r = parse(payload.getData(), type);
+            if(r != null){
+                result.put(idList.get(i), r);
+            }
+            if(payload.getExpireAt() <= now){
+                stale.add(idList.get(i));
+            }
+        }
+        cacheMetrics.record(keyPrefix, CacheMetrics.HIT, idList.size() - misses.size() - stale.size());
+        cacheMetrics.record(keyPrefix, CacheMetrics.STALE, stale.size());
+        cacheMetrics.record(keyPrefix, CacheMetrics.MISS, misses.size());
+
+        //已过期的id合并成一个异步任务重建，相同的一批id只会有一个任务
+        if(!stale.isEmpty() && redisHealth.isAvailable() && !dbFallbackGuard.isOpen(keyPrefix)){
+            rebuildScheduler.submit(keyPrefix + stale, () -> {
+                Map<ID, R> reloaded = load(keyPrefix, () -> dbFallback.apply(stale));
+                setWithLogicalExpireBatch(keyPrefix, stale, reloaded, time, unit);
+            });
+        }
+        if(misses.isEmpty()){
+            return result;
+        }
+
+        //不存在的id一次性查询数据库并回写
+        Map<ID, R> loaded = load(keyPrefix, () -> dbFallback.apply(misses));
+        if(loaded != null){
+            result.putAll(loaded);
+        }
+        setWithLogicalExpireBatch(keyPrefix, misses, loaded, time, unit);
+        return result;
+    }
+
+    /**
+     * 批量写入逻辑过期缓存，数据库中不存在的id写入带真实过期时间的空值
+     */
+    private <R, ID> void setWithLogicalExpireBatch(String keyPrefix, List<ID> ids, Map<ID, R> loaded, Long time, TimeUnit unit){
+        Map<String, String> values = new HashMap<>(ids.size());
+        Set<String> nullKeys = new HashSet<>();
+        for (ID id : ids) {
+            String key = keyPrefix + id;
+            R r = loaded == null ? null : loaded.get(id);
+            if(r == null){
+                nullKeys.add(key);
+                values.put(key, CachePayload.encode(expireAt(RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES), null, "null"));
+            }else {
+                values.put(key, CachePayload.encode(expireAt(time, unit), null, render(r)));
+            }
+        }
+        long nullSeconds = TimeUnit.MINUTES.toSeconds(RedisConstants.CACHE_NULL_TTL);
+        write(() -> stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (Map.Entry<String, String> entry : values.entrySet()) {
+                if(nullKeys.contains(entry.getKey())){
+                    conn.setEx(entry.getKey(), nullSeconds, entry.getValue());
+                }else {
+                    conn.set(entry.getKey(), entry.getValue());
+                }
+            }
+            return null;
+        }));
+        values.forEach((key, json) -> {
+            hotKeyCache.remove(key);
+            if(!nullKeys.contains(key)){
+                keepStale(key, json);
+            }
+        });
+    }
+
+    /**
+     * 批量读取缓存字符串：热点key优先读本地副本，其余一次MGET查询redis
+     * @param keys 缓存key
+     * @return 与keys一一对应的原始字符串
+     */
+    private String[] readBatch(List<String> keys){
+        String[] jsons = new String[keys.size()];
+        List<Integer> remoteIndexes = new ArrayList<>(keys.size());
+        for (int i = 0; i < keys.size(); i++) {
+            String key = keys.get(i);
+            hotKeyDetector.record(key);
+            jsons[i] = hotKeyDetector.isHot(key) ? hotKeyCache.get(key) : null;
+            if(jsons[i] == null){
+                remoteIndexes.add(i);
+            }
+        }
+        if(!remoteIndexes.isEmpty()){
+            List<String> remoteKeys = remoteIndexes.stream().map(keys::get).collect(Collectors.toList());
+            List<String> remoteJsons = multiGet(remoteKeys);
+            for (int i = 0; remoteJsons != null && i < remoteIndexes.size(); i++) {
+                int index = remoteIndexes.get(i);
+                jsons[index] = remoteJsons.get(i);
+                cacheIfHot(keys.get(index), jsons[index]);
+            }
+        }
+        return jsons;
+    }
+
+    //逻辑过期缓存未命中时，没有抢到锁的请求重新读取缓存的次数和间隔
+    private static final int MISS_RETRY_TIMES = 20;
+    private static final long MISS_RETRY_INTERVAL_MILLIS = 50;
+
+    //释放锁的lua脚本：比较锁的持有者标识后再删除
+    private static final DefaultRedisScript<Long> UNLOCK_SCRIPT;
+    static {
+        UNLOCK_SCRIPT = new DefaultRedisScript<>();
+        UNLOCK_SCRIPT.setLocation(new ClassPathResource("unlock.lua"));
+        UNLOCK_SCRIPT.setResultType(Long.class);
+    }
 
     /**
      * 缓存击穿问题：逻辑过期方法
+     * 未过期时按XFetch算法概率性提前刷新：越接近过期、重建越耗时，提前刷新的概率越高，
+     * 热点key几乎不会真正过期，重建压力也会被平滑地打散
      * @param id 店铺id
      * @return 店铺信息
      */
     public <R, ID> R queryWithLogicalExpire(String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
+        CachePayload payload = queryPayloadWithLogicalExpire(keyPrefix, id, type, dbFallback, time, unit);
+        return payload == null ? null : parse(payload.getData(), type);
+    }
+
+    /**
+     * 逻辑过期查询的直通版本：直接返回缓存中已渲染好的数据JSON，不做反序列化，
+     * 由调用方原样写入响应，省去一次解码和一次编码
+     * @param type 数据类型，只在兼容旧格式缓存时使用
+     * @return 数据JSON，不存在时返回null
+     */
+    public <ID> String queryRenderedWithLogicalExpire(String keyPrefix, ID id, Class<?> type, Function<ID, ?> dbFallback, Long time, TimeUnit unit) {
+        CachePayload payload = queryPayloadWithLogicalExpire(keyPrefix, id, type, dbFallback, time, unit);
+        if(payload == null || "null".equals(payload.getData())){
+            return null;
+        }
+        return payload.getData();
+    }
+
+    private <ID> CachePayload queryPayloadWithLogicalExpire(String keyPrefix, ID id, Class<?> type, Function<ID, ?> dbFallback, Long time, TimeUnit unit) {
         String key = keyPrefix + id;
 
         //从redis查询商铺信息
-        String json = stringRedisTemplate.opsForValue().get(key);
+        String json = get(key);
 
         //判断是否存在
         if(StrUtil.isBlank(json)){
-            //不存在，直接返回null
-            return null;
+            cacheMetrics.record(keyPrefix, CacheMetrics.MISS);
+            if(redisHealth.isAvailable()){
+                //不存在(未预热或新增的数据)，加锁回源数据库并写入
+                return loadOnMiss(keyPrefix, id, type, dbFallback, time, unit);
+            }
+            //redis不可用且本地没有旧数据，限流回源数据库，结果只保留在本地
+            Object r = load(keyPrefix, () -> dbFallback.apply(id));
+            if(r == null){
+                return null;
+            }
+            return setRenderedWithLogicalExpire(key, render(r), time, unit, null);
         }
 
-        //命中，需要先把json反序列化为对象
-        RedisData redisData = JSONUtil.toBean(json, RedisData.class);
-        JSONObject data = (JSONObject) redisData.getData();
-        R r = JSONUtil.toBean(data, type);
-        LocalDateTime expireTime = redisData.getExpireTime();
+        //命中，只截取已渲染的数据，不做反序列化
+        CachePayload payload = decodePayload(json, type);
 
-        //判断是否过期
-        if(expireTime.isAfter(LocalDateTime.now())){
+        //判断是否过期(或需要提前刷新)
+        boolean expired = payload.getExpireAt() <= System.currentTimeMillis();
+        cacheMetrics.record(keyPrefix, expired ? CacheMetrics.STALE : CacheMetrics.HIT);
+        if(!expired && !shouldRefresh(payload.getExpireAt(), payload.getDelta())){
             //未过期，直接返回店铺信息
-            return r;
+            return payload;
         }
 
-        //已过期，需要缓存重建
-        // 获取互斥锁
+        //已过期，需要缓存重建；redis不可用、本实例已经有重建任务或者回源熔断中时不再抢锁，直接返回旧数据
+        if(!redisHealth.isAvailable() || rebuildScheduler.isInFlight(key) || dbFallbackGuard.isOpen(keyPrefix)){
+            return payload;
+        }
+        // 获取互斥锁，锁的值是本次持有者的标识
         String lockKey = RedisConstants.LOCK_SHOP_KEY + id;
-        boolean isLock = trylock(lockKey);
+        String token = trylock(lockKey);
 
         //判断是否获取锁成功
-        if(isLock){
-            //成功，开启独立线程，实现缓存重建
-            CHCHE_REBUILD_EXECTURE.submit(() -> {
+        if(token != null){
+            //成功，提交到重建调度器，实现缓存重建
+            boolean submitted = rebuildScheduler.submit(key, () -> {
                 try {
-                    //重建缓存:先查数据库
-                    R r1 = dbFallback.apply(id);
+                    //重建缓存:先查数据库，并记录耗时
+                    long begin = System.currentTimeMillis();
+                    Object r1 = load(keyPrefix, () -> dbFallback.apply(id));
+                    long delta = System.currentTimeMillis() - begin;
 
                     //重建缓存:写入redis
-                    this.setWithLogicalExpire(key, r1, time, unit);
-
-                }catch (Exception e){
-                    throw new RuntimeException(e);
+                    this.setWithLogicalExpire(key, r1, time, unit, delta);
                 }finally {
                     //释放锁
-                    unLock(lockKey);
+                    unLock(lockKey, token);
                 }
             });
+            if(!submitted){
+                //重复或队列已满，任务没有执行，立即释放锁
+                unLock(lockKey, token);
+            }
         }
         //失败，直接返回过期的商铺信息
-        return r;
+        return payload;
+    }
+
+    /**
+     * 逻辑过期缓存未命中：获取互斥锁后回源数据库(经过熔断和舱壁)并写入，数据库中不存在时写入带真实过期时间的空值；
+     * 没有抢到锁的请求等待后重新读取缓存，始终只有一个请求回源
+     * @return 缓存内容，不存在或等待超时时返回null
+     */
+    private <ID> CachePayload loadOnMiss(String keyPrefix, ID id, Class<?> type, Function<ID, ?> dbFallback, Long time, TimeUnit unit) {
+        String key = keyPrefix + id;
+        String lockKey = RedisConstants.LOCK_SHOP_KEY + id;
+        for (int i = 0; i < MISS_RETRY_TIMES; i++) {
+            String token = trylock(lockKey);
+            if(token != null){
+                try {
+                    //双重检查：等待锁期间其他请求可能已经写入
+                    String json = stringRedisTemplate.opsForValue().get(key);
+                    if(StrUtil.isNotBlank(json)){
+                        return decodePayload(json, type);
+                    }
+                    long begin = System.currentTimeMillis();
+                    Object r = load(keyPrefix, () -> dbFallback.apply(id));
+                    long delta = System.currentTimeMillis() - begin;
+                    if(r == null){
+                        //缓存穿透：写入空值
+                        String nullJson = CachePayload.encode(expireAt(RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES), null, "null");
+                        write(() -> stringRedisTemplate.opsForValue().set(key, nullJson, RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES));
+                        return null;
+                    }
+                    return setRenderedWithLogicalExpire(key, render(r), time, unit, delta);
+                } finally {
+                    unLock(lockKey, token);
+                }
+            }
+            //其他请求正在回源，稍后重新读取
+            try {
+                Thread.sleep(MISS_RETRY_INTERVAL_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+            String json = stringRedisTemplate.opsForValue().get(key);
+            if(StrUtil.isNotBlank(json)){
+                return decodePayload(json, type);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 解析逻辑过期缓存；旧版RedisData格式(hutool序列化，日期为时间戳)按类型转换后重新渲染，
+     * 过期重建后会被新格式覆盖
+     */
+    private CachePayload decodePayload(String json, Class<?> type){
+        CachePayload payload = CachePayload.decode(json);
+        if(payload != null){
+            return payload;
+        }
+        RedisData redisData = JSONUtil.toBean(json, RedisData.class);
+        long expireAt = redisData.getExpireTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        Object data = redisData.getData() instanceof JSONObject
+                ? JSONUtil.toBean((JSONObject) redisData.getData(), type) : redisData.getData();
+        return new CachePayload(expireAt, redisData.getDelta(), render(data));
+    }
+
+    /**
+     * 按接口响应的格式(spring的ObjectMapper)渲染数据，保证直通输出与正常序列化结果一致
+     */
+    private String render(Object value){
+        try {
+            return objectMapper.writeValueAsString(value);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("缓存数据序列化失败", e);
+        }
+    }
+
+    private <R> R parse(String data, Class<R> type){
+        try {
+            return objectMapper.readValue(data, type);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("缓存数据反序列化失败", e);
+        }
+    }
+
+    /**
+     * 逻辑过期时间，附加随机抖动
+     */
+    private long expireAt(Long time, TimeUnit unit){
+        return System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(jitter(unit.toSeconds(time)));
+    }
+
+    /**
+     * 分桶存储模式：小对象按 keyPrefix + "bucket:" + id / 桶大小 打包进同一个hash，field为id，
+     * 共用一个顶层key，redis使用紧凑的listpack(ziplist)编码，每个key的固定开销被摊薄。
+     * 需要redis配置 hash-max-listpack-entries >= 桶大小、hash-max-listpack-value >= 单条数据长度，
+     * 否则桶会转换为普通hash编码，节省不明显。
+     * 每条数据自带逻辑过期时间，读到过期数据按未命中处理，过期条目由CacheBucketSweeper定期清理
+     * @param id 数据id，同时决定所在的桶
+     * @return 数据，不存在时返回null
+     */
+    public <R> R queryPacked(String keyPrefix, Long id, Class<R> type, Function<Long, R> dbFallback, Long time, TimeUnit unit) {
+        CachePayload payload = queryPackedPayload(keyPrefix, id, dbFallback, time, unit);
+        return payload == null ? null : parse(payload.getData(), type);
+    }
+
+    /**
+     * 分桶存储模式的直通版本：直接返回已渲染好的数据JSON
+     * @return 数据JSON，不存在时返回null
+     */
+    public String queryRenderedPacked(String keyPrefix, Long id, Function<Long, ?> dbFallback, Long time, TimeUnit unit) {
+        CachePayload payload = queryPackedPayload(keyPrefix, id, dbFallback, time, unit);
+        if(payload == null || "null".equals(payload.getData())){
+            return null;
+        }
+        return payload.getData();
+    }
+
+    /**
+     * 分桶存储模式写入缓存，同时给桶续期
+     */
+    public void setPacked(String keyPrefix, Long id, Object value, Long time, TimeUnit unit) {
+        setRenderedPacked(keyPrefix, id, render(value), time, unit);
+    }
+
+    /**
+     * 删除分桶存储的单条数据
+     */
+    public void deletePacked(String keyPrefix, Long id) {
+        stringRedisTemplate.opsForHash().delete(packedKey(keyPrefix, id), id.toString());
+    }
+
+    /**
+     * 使用过分桶存储的缓存前缀
+     */
+    public Set<String> getPackedPrefixes() {
+        return Collections.unmodifiableSet(packedPrefixes);
+    }
+
+    private CachePayload queryPackedPayload(String keyPrefix, Long id, Function<Long, ?> dbFallback, Long time, TimeUnit unit) {
+        packedPrefixes.add(keyPrefix);
+        String json = hget(packedKey(keyPrefix, id), id.toString());
+        CachePayload payload = json == null ? null : CachePayload.decode(json);
+        if(payload != null && payload.getExpireAt() > System.currentTimeMillis()){
+            //命中，包括空值
+            cacheMetrics.record(keyPrefix, "null".equals(payload.getData()) ? CacheMetrics.NULL_HIT : CacheMetrics.HIT);
+            return payload;
+        }
+
+        //不存在或已过期，查询数据库
+        cacheMetrics.record(keyPrefix, CacheMetrics.MISS);
+        Object r = load(keyPrefix, () -> dbFallback.apply(id));
+
+        //数据库也不存在时写入空值，防止缓存穿透
+        long seconds = r == null ? TimeUnit.MINUTES.toSeconds(RedisConstants.CACHE_NULL_TTL) : unit.toSeconds(time);
+        return setRenderedPacked(keyPrefix, id, render(r), seconds, TimeUnit.SECONDS);
+    }
+
+    private CachePayload setRenderedPacked(String keyPrefix, Long id, String data, Long time, TimeUnit unit) {
+        packedPrefixes.add(keyPrefix);
+        String bucketKey = packedKey(keyPrefix, id);
+        CachePayload payload = new CachePayload(expireAt(time, unit), null, data);
+        String json = CachePayload.encode(payload.getExpireAt(), null, data);
+        write(() -> stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            conn.hSet(bucketKey, id.toString(), json);
+            conn.expire(bucketKey, TimeUnit.MINUTES.toSeconds(packedBucketTtlMinutes));
+            return null;
+        }));
+        return payload;
+    }
+
+    /**
+     * 读取桶内的一条数据，redis不可用或读取失败时按未命中处理
+     */
+    private String hget(String bucketKey, String field) {
+        if(!redisHealth.isAvailable()){
+            return null;
+        }
+        try {
+            return (String) stringRedisTemplate.opsForHash().get(bucketKey, field);
+        } catch (DataAccessException e) {
+            redisHealth.reportFailure(e);
+            return null;
+        }
+    }
+
+    private String packedKey(String keyPrefix, Long id) {
+        return keyPrefix + RedisConstants.CACHE_BUCKET_INFIX + (id / packedBucketSize);
+    }
+
+    /**
+     * 数据库回源：受舱壁和熔断保护，数据库变慢时快速失败而不是拖垮所有线程；
+     * redis不可用或刚恢复时额外限流，防止大量未命中同时打到数据库
+     * @param keyPrefix 缓存键前缀
+     * @param loader 数据库查询
+     * @return 查询结果
+     */
+    private <T> T load(String keyPrefix, Supplier<T> loader){
+        if(redisHealth.isFallbackLimited() && !redisHealth.tryAcquireFallbackPermit()){
+            cacheMetrics.recordFallbackRejected(keyPrefix, "degrade-rate-limit");
+            throw new DbFallbackRejectedException("redis降级中，数据库回源限流:" + keyPrefix);
+        }
+        return rebuild(keyPrefix, () -> dbFallbackGuard.execute(keyPrefix, loader));
+    }
+
+    /**
+     * 调用dbFallback重建缓存，并记录重建耗时和结果
+     * @param keyPrefix 缓存键前缀
+     * @param loader 数据库查询
+     * @return 查询结果
+     */
+    private <T> T rebuild(String keyPrefix, Supplier<T> loader){
+        long begin = System.nanoTime();
+        boolean success = false;
+        try {
+            T t = loader.get();
+            success = true;
+            return t;
+        } finally {
+            cacheMetrics.recordRebuild(keyPrefix, System.nanoTime() - begin, success);
+        }
+    }
+
+    /**
+     * XFetch概率性提前刷新判断：now - delta * beta * ln(rand) >= expireAt
+     * @param expireAt 逻辑过期时间(毫秒时间戳)
+     * @param delta 最近一次重建耗时(毫秒)
+     * @return 是否需要重建缓存
+     */
+    private boolean shouldRefresh(long expireAt, Long delta){
+        long now = System.currentTimeMillis();
+        if(now >= expireAt){
+            //已过期
+            return true;
+        }
+        long cost = delta == null || delta <= 0 ? RedisConstants.CACHE_XFETCH_DEFAULT_DELTA : delta;
+        //rand取(0,1]，-ln(rand)服从指数分布
+        double rand = 1.0 - ThreadLocalRandom.current().nextDouble();
+        double gap = -cost * RedisConstants.CACHE_XFETCH_BETA * Math.log(rand);
+        return now + gap >= expireAt;
+    }
+
+    /**
+     * 读取缓存字符串：记录访问用于热点探测，热点key优先读本地副本，避免单个redis节点被打爆；
+     * redis不可用时降级读取本地旧数据
+     * @param key 缓存key
+     * @return redis中的原始字符串
+     */
+    private String get(String key){
+        if(!redisHealth.isAvailable()){
+            return staleCache.get(key);
+        }
+        hotKeyDetector.record(key);
+        boolean hot = hotKeyDetector.isHot(key);
+        if(hot){
+            String json = hotKeyCache.get(key);
+            if(json != null){
+                return json;
+            }
+        }
+        try {
+            String json = stringRedisTemplate.opsForValue().get(key);
+            if(hot){
+                cacheIfHot(key, json);
+            }
+            keepStale(key, json);
+            return json;
+        } catch (DataAccessException e) {
+            redisHealth.reportFailure(e);
+            return staleCache.get(key);
+        }
+    }
+
+    /**
+     * 批量读取缓存字符串，redis不可用时降级读取本地旧数据
+     * @param keys 缓存key
+     * @return 与keys一一对应的原始字符串
+     */
+    private List<String> multiGet(List<String> keys){
+        if(redisHealth.isAvailable()){
+            try {
+                List<String> jsons = stringRedisTemplate.opsForValue().multiGet(keys);
+                if(jsons != null){
+                    for (int i = 0; i < keys.size(); i++) {
+                        keepStale(keys.get(i), jsons.get(i));
+                    }
+                }
+                return jsons;
+            } catch (DataAccessException e) {
+                redisHealth.reportFailure(e);
+            }
+        }
+        return keys.stream().map(staleCache::get).collect(Collectors.toList());
+    }
+
+    /**
+     * 写redis：redis不可用时跳过，写入失败上报后忽略(数据仍然会保留在本地旧数据中)
+     */
+    private void write(Runnable action){
+        if(!redisHealth.isAvailable()){
+            return;
+        }
+        try {
+            action.run();
+        } catch (DataAccessException e) {
+            redisHealth.reportFailure(e);
+            log.warn("写入缓存失败:{}", e.getMessage());
+        }
+    }
+
+    /**
+     * 为配置的前缀保留一份本地旧数据，值没有变化时不重复写入
+     */
+    private void keepStale(String key, String json){
+        if(StrUtil.isBlank(json) || !isStalePrefix(key)){
+            return;
+        }
+        if(!json.equals(staleCache.get(key))){
+            staleCache.put(key, json, TimeUnit.MINUTES.toMillis(staleTtlMinutes));
+        }
+    }
+
+    private boolean isStalePrefix(String key){
+        for (String prefix : stalePrefixes) {
+            if(key.startsWith(prefix)){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 如果是热点key，把redis中读到的值放入本地副本
+     */
+    private void cacheIfHot(String key, String json){
+        if(json != null && hotKeyDetector.isHot(key)){
+            hotKeyCache.put(key, json, hotKeyLocalTtl);
+        }
     }
 
     /**
      * 尝试获取锁
      * @param key 锁的key
-     * @return 是否获取锁
+     * @return 获取成功返回持有者标识，失败返回null
      */
-    private boolean trylock(String key){
-        //尝试上锁，当锁的key不存在则创建
-        Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(key, "1", 10, TimeUnit.SECONDS);
-        return BooleanUtil.isTrue(flag);
+    private String trylock(String key){
+        //尝试上锁，当锁的key不存在则创建，值为本次持有者的唯一标识
+        String token = UUID.randomUUID().toString(true);
+        Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(key, token, RedisConstants.LOCK_SHOP_TTL, TimeUnit.SECONDS);
+        return BooleanUtil.isTrue(flag) ? token : null;
     }
 
     /**
-     * 释放锁
+     * 释放锁：只有锁仍然由自己持有时才删除(比较并删除)
+     * 防止重建耗时超过锁的过期时间后误删其他实例的锁
      * @param key 锁的key
+     * @param token 持有者标识
      */
-    private void unLock(String key){
-        stringRedisTemplate.delete(key);
+    private void unLock(String key, String token){
+        stringRedisTemplate.execute(UNLOCK_SCRIPT, Collections.singletonList(key), token);
     }
 
 }
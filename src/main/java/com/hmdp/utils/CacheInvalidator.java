@@ -0,0 +1,108 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.Resource;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 缓存失效发件箱
+ * 1. 删除缓存注册在事务提交之后执行，避免提交前被并发读请求用旧数据回填缓存
+ * 2. 删除失败的key进入本地延迟队列，按指数退避重试
+ * 3. 可选的延迟双删：提交后再延迟删除一次，兜住提交前已经读到旧数据、提交后才回填的请求
+ * 4. 逻辑过期的缓存未命中时不会回源，不能删除，改为提交后用最新数据覆盖(同样失败重试、延迟再覆盖一次)
+ */
+@Slf4j
+@Component
+public class CacheInvalidator {
+
+    //重试的初始间隔(毫秒)，每次重试翻倍
+    private static final long RETRY_BASE_DELAY = 100L;
+
+    private static final ScheduledExecutorService CACHE_INVALIDATE_EXECUTOR = Executors.newSingleThreadScheduledExecutor();
+
+    @Resource
+    private CacheClient cacheClient;
+
+    @Value("${hmdp.cache.invalidate.delayed-delete-millis:500}")
+    private long delayedDeleteMillis;
+
+    @Value("${hmdp.cache.invalidate.max-retries:5}")
+    private int maxRetries;
+
+    /**
+     * 在当前事务提交之后删除缓存；没有事务时立即删除
+     * @param key 缓存key
+     */
+    public void evictAfterCommit(String key) {
+        evictAfterCommit(key, () -> cacheClient.delete(key));
+    }
+
+    /**
+     * 在当前事务提交之后删除分桶存储的单条缓存；没有事务时立即删除
+     * @param keyPrefix 缓存键前缀
+     * @param id 数据id
+     */
+    public void evictPackedAfterCommit(String keyPrefix, Long id) {
+        evictAfterCommit(keyPrefix + id, () -> cacheClient.deletePacked(keyPrefix, id));
+    }
+
+    /**
+     * 在当前事务提交之后刷新逻辑过期的缓存；没有事务时立即刷新
+     * @param key 缓存key
+     * @param refresh 刷新动作：重新查询数据库并覆盖缓存，失败时抛出异常
+     */
+    public void refreshAfterCommit(String key, Runnable refresh) {
+        evictAfterCommit(key, refresh);
+    }
+
+    /**
+     * @param key 用于日志的缓存key
+     * @param action 删除或刷新动作
+     */
+    private void evictAfterCommit(String key, Runnable action) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            evict(key, action);
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            public void afterCommit() {
+                evict(key, action);
+            }
+        });
+    }
+
+    private void evict(String key, Runnable action) {
+        apply(key, action, 0);
+        if (delayedDeleteMillis > 0) {
+            //延迟双删(刷新时为延迟再覆盖一次)
+            CACHE_INVALIDATE_EXECUTOR.schedule(() -> apply(key, action, 0), delayedDeleteMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * 执行删除或刷新，失败则放入本地延迟队列重试
+     * @param key 缓存key
+     * @param action 删除或刷新动作
+     * @param attempt 已重试次数
+     */
+    private void apply(String key, Runnable action, int attempt) {
+        try {
+            action.run();
+        } catch (Exception e) {
+            if (attempt >= maxRetries) {
+                log.error("删除/刷新缓存失败，已放弃重试，key:{}", key, e);
+                return;
+            }
+            long delay = RETRY_BASE_DELAY << attempt;
+            log.warn("删除/刷新缓存失败，{}ms后第{}次重试，key:{}", delay, attempt + 1, key);
+            CACHE_INVALIDATE_EXECUTOR.schedule(() -> apply(key, action, attempt + 1), delay, TimeUnit.MILLISECONDS);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package com.hmdp.utils;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.jvm.ExecutorServiceMetrics;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 缓存指标：按key前缀和结果统计缓存访问次数、缓存重建耗时
+ * 通过actuator的 /actuator/metrics/cache.requests、/actuator/metrics/cache.rebuild 查看
+ */
+@Component
+public class CacheMetrics {
+
+    //命中
+    public static final String HIT = "hit";
+    //未命中
+    public static final String MISS = "miss";
+    //命中空值(缓存穿透分支)
+    public static final String NULL_HIT = "null-hit";
+    //命中已逻辑过期的数据
+    public static final String STALE = "stale";
+    //合并到正在执行的相同请求
+    public static final String COLLAPSED = "collapsed";
+    //缓存重建成功
+    public static final String REBUILD_OK = "rebuild-ok";
+    //缓存重建失败
+    public static final String REBUILD_FAIL = "rebuild-fail";
+
+    //重建任务提交结果
+    public static final String SUBMIT_ACCEPTED = "accepted";
+    public static final String SUBMIT_DEDUPLICATED = "deduplicated";
+    public static final String SUBMIT_REJECTED = "rejected";
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    /**
+     * 记录一次缓存访问
+     * @param keyPrefix 缓存键前缀
+     * @param outcome 访问结果
+     */
+    public void record(String keyPrefix, String outcome) {
+        record(keyPrefix, outcome, 1);
+    }
+
+    /**
+     * 记录多次缓存访问(批量查询)
+     */
+    public void record(String keyPrefix, String outcome, int count) {
+        if (count <= 0) {
+            return;
+        }
+        Counter.builder("cache.requests")
+                .tags("prefix", keyPrefix, "outcome", outcome)
+                .register(meterRegistry)
+                .increment(count);
+    }
+
+    /**
+     * 记录一次缓存重建(调用dbFallback)的耗时
+     * @param keyPrefix 缓存键前缀
+     * @param nanos 耗时(纳秒)
+     * @param success 是否成功
+     */
+    public void recordRebuild(String keyPrefix, long nanos, boolean success) {
+        Timer.builder("cache.rebuild")
+                .tags("prefix", keyPrefix, "outcome", success ? REBUILD_OK : REBUILD_FAIL)
+                .publishPercentileHistogram()
+                .register(meterRegistry)
+                .record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * 记录一次重建任务的提交结果
+     * @param outcome accepted/deduplicated/rejected
+     */
+    public void recordRebuildSubmit(String outcome) {
+        meterRegistry.counter("cache.rebuild.submit", "outcome", outcome).increment();
+    }
+
+    /**
+     * 记录一次被舱壁或熔断拒绝的数据库回源
+     * @param keyPrefix 缓存键前缀
+     * @param reason circuit-open/bulkhead-full
+     */
+    public void recordFallbackRejected(String keyPrefix, String reason) {
+        meterRegistry.counter("cache.fallback.rejected", "prefix", keyPrefix, "reason", reason).increment();
+    }
+
+    /**
+     * 监控线程池：队列长度、活跃线程数、已完成任务数等
+     * @param executor 线程池
+     * @param name 线程池名称
+     */
+    public void monitorExecutor(ExecutorService executor, String name) {
+        new ExecutorServiceMetrics(executor, name, Tags.empty()).bindTo(meterRegistry);
+    }
+}
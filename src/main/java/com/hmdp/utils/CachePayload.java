@@ -0,0 +1,67 @@
+package com.hmdp.utils;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * 逻辑过期缓存的存储格式：{"expireTime":毫秒时间戳,"delta":重建耗时,"data":已渲染的JSON}
+ * data部分就是接口响应里data字段的原样字节，命中时只需截取，不需要反序列化再序列化
+ */
+@Getter
+@AllArgsConstructor
+public class CachePayload {
+
+    private static final String EXPIRE_FIELD = "{\"expireTime\":";
+    private static final String DELTA_FIELD = ",\"delta\":";
+    private static final String DATA_FIELD = ",\"data\":";
+    private static final String NULL = "null";
+
+    /**
+     * 逻辑过期时间(毫秒时间戳)
+     */
+    private final long expireAt;
+    /**
+     * 最近一次缓存重建耗时(毫秒)，为空表示未知
+     */
+    private final Long delta;
+    /**
+     * 已渲染好的数据JSON
+     */
+    private final String data;
+
+    /**
+     * 按固定字段顺序拼接存储字符串，data原样嵌入
+     */
+    public static String encode(long expireAt, Long delta, String data) {
+        return EXPIRE_FIELD + expireAt + DELTA_FIELD + (delta == null ? NULL : delta.toString())
+                + DATA_FIELD + data + "}";
+    }
+
+    /**
+     * 按固定字段顺序截取，不做JSON解析
+     * @param raw redis中的原始字符串
+     * @return 不是该格式(例如旧版RedisData)时返回null
+     */
+    public static CachePayload decode(String raw) {
+        if (!raw.startsWith(EXPIRE_FIELD) || !raw.endsWith("}")) {
+            return null;
+        }
+        int deltaIndex = raw.indexOf(DELTA_FIELD, EXPIRE_FIELD.length());
+        if (deltaIndex < 0) {
+            return null;
+        }
+        int dataIndex = raw.indexOf(DATA_FIELD, deltaIndex + DELTA_FIELD.length());
+        if (dataIndex < 0) {
+            return null;
+        }
+        try {
+            long expireAt = Long.parseLong(raw.substring(EXPIRE_FIELD.length(), deltaIndex));
+            String deltaStr = raw.substring(deltaIndex + DELTA_FIELD.length(), dataIndex);
+            Long delta = NULL.equals(deltaStr) ? null : Long.valueOf(deltaStr);
+            String data = raw.substring(dataIndex + DATA_FIELD.length(), raw.length() - 1);
+            return new CachePayload(expireAt, delta, data);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
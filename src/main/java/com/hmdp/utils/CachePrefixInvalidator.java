@@ -0,0 +1,300 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 按前缀批量失效缓存(例如批量修复店铺数据后失效 cache:shop:)
+ * 1. 不使用KEYS，用lua脚本分批 SCAN + UNLINK，每批一次往返，释放内存在redis后台线程完成
+ * 2. 按配置的速率分批执行，批次之间休眠，不影响线上请求的延迟
+ * 3. 任务进度(游标、删除数量)保存在redis的hash中，执行实例宕机后由其他实例从游标处继续
+ * 4. 可选广播通知所有实例删除该前缀的本地副本
+ */
+@Slf4j
+@Component
+public class CachePrefixInvalidator {
+
+    public static final String STATUS_RUNNING = "running";
+    public static final String STATUS_DONE = "done";
+    public static final String STATUS_FAILED = "failed";
+
+    //执行锁的租期，执行中每批续期；超过租期没有续期视为执行实例已宕机，任务可以被接管
+    private static final long JOB_LEASE_SECONDS = 30;
+
+    //任务结束后进度的保留时间
+    private static final long JOB_STATE_TTL_HOURS = 24;
+
+    private static final DefaultRedisScript<List> SCAN_UNLINK_SCRIPT;
+    private static final DefaultRedisScript<Long> UNLOCK_SCRIPT;
+    private static final DefaultRedisScript<Long> RENEW_LOCK_SCRIPT;
+
+    static {
+        SCAN_UNLINK_SCRIPT = new DefaultRedisScript<>();
+        SCAN_UNLINK_SCRIPT.setLocation(new ClassPathResource("scan_unlink.lua"));
+        SCAN_UNLINK_SCRIPT.setResultType(List.class);
+
+        UNLOCK_SCRIPT = new DefaultRedisScript<>();
+        UNLOCK_SCRIPT.setLocation(new ClassPathResource("unlock.lua"));
+        UNLOCK_SCRIPT.setResultType(Long.class);
+
+        RENEW_LOCK_SCRIPT = new DefaultRedisScript<>();
+        RENEW_LOCK_SCRIPT.setLocation(new ClassPathResource("renew_lock.lua"));
+        RENEW_LOCK_SCRIPT.setResultType(Long.class);
+    }
+
+    //单线程执行，同一实例上的失效任务排队进行，避免并发放大对redis的压力
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    //本实例的标识，作为执行锁的值
+    private final String owner = UUID.randomUUID().toString(true);
+
+    //本实例已提交(排队或执行中)的任务，避免重复接管自己的任务
+    private final Set<String> localJobs = ConcurrentHashMap.newKeySet();
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    @Value("${hmdp.cache.prefix-invalidate.batch-size:500}")
+    private int batchSize;
+
+    @Value("${hmdp.cache.prefix-invalidate.keys-per-second:5000}")
+    private int keysPerSecond;
+
+    @PostConstruct
+    private void init() {
+        //收到通知后删除本实例中该前缀的本地副本
+        redisMessageListenerContainer.addMessageListener(
+                (message, pattern) -> cacheClient.evictLocal(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(RedisConstants.CACHE_INVALIDATE_CHANNEL));
+    }
+
+    @PreDestroy
+    private void destroy() {
+        //中断正在执行的任务，任务保持running状态，锁过期后由其他实例或重启后继续
+        executor.shutdownNow();
+    }
+
+    /**
+     * 提交一个按前缀失效缓存的任务
+     * @param prefix 缓存key前缀
+     * @param publishLocal 是否通知所有实例删除本地副本
+     * @return 任务id
+     */
+    public String submit(String prefix, boolean publishLocal) {
+        String jobId = UUID.randomUUID().toString(true);
+        String jobKey = RedisConstants.CACHE_INVALIDATE_JOB_KEY + jobId;
+        String now = String.valueOf(System.currentTimeMillis());
+        Map<String, String> state = new HashMap<>();
+        state.put("prefix", prefix);
+        state.put("publishLocal", String.valueOf(publishLocal));
+        state.put("status", STATUS_RUNNING);
+        state.put("cursor", "0");
+        state.put("deleted", "0");
+        state.put("batches", "0");
+        state.put("createTime", now);
+        state.put("updateTime", now);
+        stringRedisTemplate.opsForHash().putAll(jobKey, state);
+        stringRedisTemplate.opsForSet().add(RedisConstants.CACHE_INVALIDATE_JOBS_KEY, jobId);
+
+        //新任务一定能拿到锁
+        tryLock(jobId);
+        localJobs.add(jobId);
+        executor.submit(() -> run(jobId));
+        return jobId;
+    }
+
+    /**
+     * 查询任务进度
+     * @param jobId 任务id
+     * @return 任务状态，不存在或已过期时返回空
+     */
+    public Map<Object, Object> getProgress(String jobId) {
+        return stringRedisTemplate.opsForHash().entries(RedisConstants.CACHE_INVALIDATE_JOB_KEY + jobId);
+    }
+
+    /**
+     * 接管执行实例已宕机的任务(服务启动后也会立即执行一次)
+     */
+    @Scheduled(fixedDelay = JOB_LEASE_SECONDS * 1000)
+    public void resumeAbandoned() {
+        Set<String> jobIds = stringRedisTemplate.opsForSet().members(RedisConstants.CACHE_INVALIDATE_JOBS_KEY);
+        if (jobIds == null) {
+            return;
+        }
+        for (String jobId : jobIds) {
+            if (localJobs.contains(jobId)) {
+                continue;
+            }
+            Map<Object, Object> entries = getProgress(jobId);
+            if (entries.isEmpty() || !STATUS_RUNNING.equals(entries.get("status"))) {
+                //任务已结束或状态已过期
+                stringRedisTemplate.opsForSet().remove(RedisConstants.CACHE_INVALIDATE_JOBS_KEY, jobId);
+                continue;
+            }
+            if (!tryLock(jobId)) {
+                //仍有实例在执行
+                continue;
+            }
+            log.info("接管缓存失效任务，jobId:{}，前缀:{}，游标:{}", jobId, entries.get("prefix"), entries.get("cursor"));
+            localJobs.add(jobId);
+            executor.submit(() -> run(jobId));
+        }
+    }
+
+    /**
+     * 执行任务：从redis中保存的游标处继续
+     */
+    private void run(String jobId) {
+        try {
+            //排队期间锁可能已经过期并被其他实例接管
+            if (holdLock(jobId)) {
+                Map<Object, Object> state = getProgress(jobId);
+                if (STATUS_RUNNING.equals(state.get("status"))) {
+                    run(jobId, state);
+                }
+            }
+        } finally {
+            localJobs.remove(jobId);
+        }
+    }
+
+    private void run(String jobId, Map<Object, Object> state) {
+        String jobKey = RedisConstants.CACHE_INVALIDATE_JOB_KEY + jobId;
+        String lockKey = RedisConstants.LOCK_INVALIDATE_KEY + jobId;
+        String prefix = (String) state.get("prefix");
+        boolean publishLocal = Boolean.parseBoolean((String) state.get("publishLocal"));
+        String cursor = (String) state.get("cursor");
+        long deleted = Long.parseLong((String) state.get("deleted"));
+        long batches = Long.parseLong((String) state.get("batches"));
+        //按速率计算每批之间的间隔
+        long interval = keysPerSecond <= 0 ? 0 : batchSize * 1000L / keysPerSecond;
+        String pattern = escape(prefix) + "*";
+        try {
+            if (publishLocal) {
+                publish(prefix);
+            }
+            do {
+                //续期执行锁，锁已被其他实例接管时停止，由接管的实例从已保存的游标继续
+                if (!renewLock(jobId)) {
+                    log.warn("缓存失效任务已被其他实例接管，jobId:{}，前缀:{}", jobId, prefix);
+                    return;
+                }
+                List<?> result = stringRedisTemplate.execute(SCAN_UNLINK_SCRIPT, Collections.emptyList(),
+                        cursor, pattern, String.valueOf(batchSize));
+                cursor = String.valueOf(result.get(0));
+                deleted += ((Number) result.get(1)).longValue();
+                batches++;
+
+                //保存进度
+                Map<String, String> progress = new HashMap<>();
+                progress.put("cursor", cursor);
+                progress.put("deleted", String.valueOf(deleted));
+                progress.put("batches", String.valueOf(batches));
+                progress.put("updateTime", String.valueOf(System.currentTimeMillis()));
+                stringRedisTemplate.opsForHash().putAll(jobKey, progress);
+
+                if (!"0".equals(cursor) && interval > 0) {
+                    Thread.sleep(interval);
+                }
+            } while (!"0".equals(cursor));
+
+            finish(jobId, STATUS_DONE, null);
+            if (publishLocal) {
+                //执行期间本地副本可能又被回填了旧数据，结束时再通知一次
+                publish(prefix);
+            }
+            log.info("缓存失效任务完成，jobId:{}，前缀:{}，删除数量:{}", jobId, prefix, deleted);
+        } catch (InterruptedException e) {
+            //服务关闭，保留running状态等待接管
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            log.error("缓存失效任务失败，jobId:{}，前缀:{}", jobId, prefix, e);
+            finish(jobId, STATUS_FAILED, e.getMessage());
+        } finally {
+            stringRedisTemplate.execute(UNLOCK_SCRIPT, Collections.singletonList(lockKey), owner);
+        }
+    }
+
+    private void finish(String jobId, String status, String error) {
+        String jobKey = RedisConstants.CACHE_INVALIDATE_JOB_KEY + jobId;
+        Map<String, String> state = new HashMap<>();
+        state.put("status", status);
+        state.put("updateTime", String.valueOf(System.currentTimeMillis()));
+        if (error != null) {
+            state.put("error", error);
+        }
+        stringRedisTemplate.opsForHash().putAll(jobKey, state);
+        stringRedisTemplate.expire(jobKey, JOB_STATE_TTL_HOURS, TimeUnit.HOURS);
+        stringRedisTemplate.opsForSet().remove(RedisConstants.CACHE_INVALIDATE_JOBS_KEY, jobId);
+    }
+
+    private void publish(String prefix) {
+        stringRedisTemplate.convertAndSend(RedisConstants.CACHE_INVALIDATE_CHANNEL, prefix);
+    }
+
+    /**
+     * 确认本实例持有执行锁：已持有则续期，否则尝试获取
+     */
+    private boolean holdLock(String jobId) {
+        return renewLock(jobId) || tryLock(jobId);
+    }
+
+    /**
+     * 续期执行锁：lua脚本中比较持有者后再EXPIRE，锁已过期并被其他实例获取时不续期
+     * @return 本实例是否仍持有锁
+     */
+    private boolean renewLock(String jobId) {
+        Long result = stringRedisTemplate.execute(RENEW_LOCK_SCRIPT,
+                Collections.singletonList(RedisConstants.LOCK_INVALIDATE_KEY + jobId),
+                owner, String.valueOf(JOB_LEASE_SECONDS));
+        return result != null && result == 1;
+    }
+
+    private boolean tryLock(String jobId) {
+        Boolean success = stringRedisTemplate.opsForValue()
+                .setIfAbsent(RedisConstants.LOCK_INVALIDATE_KEY + jobId, owner, JOB_LEASE_SECONDS, TimeUnit.SECONDS);
+        return Boolean.TRUE.equals(success);
+    }
+
+    /**
+     * 转义前缀中的glob通配符，只按字面前缀匹配
+     */
+    private static String escape(String prefix) {
+        StringBuilder sb = new StringBuilder(prefix.length());
+        for (char c : prefix.toCharArray()) {
+            if (c == '*' || c == '?' || c == '[' || c == ']' || c == '\\') {
+                sb.append('\\');
+            }
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+}
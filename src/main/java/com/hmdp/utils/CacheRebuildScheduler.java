@@ -0,0 +1,91 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 缓存重建调度器
+ * 1. 有界队列：重建风暴时多余的任务直接拒绝，由调用方继续返回旧数据，而不是无限堆积
+ * 2. 按key去重：同一个key同时只会有一个重建任务在排队或执行
+ * 3. 提交结果(accepted/deduplicated/rejected)和线程池队列都有指标
+ */
+@Slf4j
+@Component
+public class CacheRebuildScheduler {
+
+    @Resource
+    private CacheMetrics cacheMetrics;
+
+    @Value("${hmdp.cache.rebuild.pool-size:10}")
+    private int poolSize;
+
+    @Value("${hmdp.cache.rebuild.queue-capacity:1000}")
+    private int queueCapacity;
+
+    //正在排队或执行重建的key
+    private final Set<String> inFlight = ConcurrentHashMap.newKeySet();
+
+    private ThreadPoolExecutor executor;
+
+    @PostConstruct
+    private void init() {
+        AtomicInteger index = new AtomicInteger();
+        executor = new ThreadPoolExecutor(poolSize, poolSize, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                r -> new Thread(r, "cache-rebuild-" + index.incrementAndGet()),
+                new ThreadPoolExecutor.AbortPolicy());
+        //暴露重建线程池的队列长度、活跃线程数等指标
+        cacheMetrics.monitorExecutor(executor, "cache-rebuild");
+    }
+
+    @PreDestroy
+    private void destroy() {
+        executor.shutdown();
+    }
+
+    /**
+     * 判断key是否已经有重建任务在排队或执行
+     */
+    public boolean isInFlight(String key) {
+        return inFlight.contains(key);
+    }
+
+    /**
+     * 提交重建任务
+     * @param key 缓存key，用于去重
+     * @param task 重建任务
+     * @return 是否提交成功，重复或队列已满返回false
+     */
+    public boolean submit(String key, Runnable task) {
+        if (!inFlight.add(key)) {
+            cacheMetrics.recordRebuildSubmit(CacheMetrics.SUBMIT_DEDUPLICATED);
+            return false;
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    task.run();
+                } catch (Exception e) {
+                    log.error("缓存重建失败，key:{}", key, e);
+                } finally {
+                    inFlight.remove(key);
+                }
+            });
+            cacheMetrics.recordRebuildSubmit(CacheMetrics.SUBMIT_ACCEPTED);
+            return true;
+        } catch (RejectedExecutionException e) {
+            inFlight.remove(key);
+            cacheMetrics.recordRebuildSubmit(CacheMetrics.SUBMIT_REJECTED);
+            log.warn("缓存重建队列已满，丢弃重建任务，key:{}", key);
+            return false;
+        }
+    }
+}
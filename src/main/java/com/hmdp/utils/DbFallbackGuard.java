@@ -0,0 +1,184 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+/**
+ * 数据库回源保护：按缓存键前缀隔离的舱壁 + 熔断器
+ * 1. 舱壁：每个前缀同时回源的线程数有上限，数据库变慢时多余的请求快速失败，不会占满Tomcat线程
+ * 2. 熔断：统计窗口内失败和慢调用的比例超过阈值后打开熔断，打开期间直接拒绝回源；
+ *    到期后进入半开状态，只放行一个探测请求，成功则关闭熔断，失败则重新打开
+ */
+@Slf4j
+@Component
+public class DbFallbackGuard {
+
+    @Resource
+    private CacheMetrics cacheMetrics;
+
+    @Value("${hmdp.cache.fallback.max-concurrent:20}")
+    private int maxConcurrent;
+
+    @Value("${hmdp.cache.fallback.acquire-timeout-millis:50}")
+    private long acquireTimeoutMillis;
+
+    @Value("${hmdp.cache.fallback.slow-call-millis:1000}")
+    private long slowCallMillis;
+
+    @Value("${hmdp.cache.fallback.failure-rate-threshold:0.5}")
+    private double failureRateThreshold;
+
+    @Value("${hmdp.cache.fallback.minimum-calls:20}")
+    private int minimumCalls;
+
+    @Value("${hmdp.cache.fallback.window-millis:10000}")
+    private long windowMillis;
+
+    @Value("${hmdp.cache.fallback.open-millis:5000}")
+    private long openMillis;
+
+    private final Map<String, Guard> guards = new ConcurrentHashMap<>();
+
+    /**
+     * 在舱壁和熔断保护下执行数据库回源
+     * @param keyPrefix 缓存键前缀
+     * @param loader 数据库查询
+     * @return 查询结果
+     * @throws DbFallbackRejectedException 熔断打开或舱壁已满
+     */
+    public <T> T execute(String keyPrefix, Supplier<T> loader) {
+        Guard guard = guards.computeIfAbsent(keyPrefix, k -> new Guard(maxConcurrent));
+        Admission admission = guard.allowRequest();
+        if (admission == Admission.REJECTED) {
+            cacheMetrics.recordFallbackRejected(keyPrefix, "circuit-open");
+            throw new DbFallbackRejectedException("数据库回源熔断中:" + keyPrefix);
+        }
+        boolean acquired;
+        try {
+            acquired = guard.bulkhead.tryAcquire(acquireTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            acquired = false;
+        }
+        boolean probe = admission == Admission.PROBE;
+        if (!acquired) {
+            if (probe) {
+                guard.releaseProbe();
+            }
+            cacheMetrics.recordFallbackRejected(keyPrefix, "bulkhead-full");
+            throw new DbFallbackRejectedException("数据库回源并发已满:" + keyPrefix);
+        }
+        long begin = System.currentTimeMillis();
+        boolean success = false;
+        try {
+            T t = loader.get();
+            success = true;
+            return t;
+        } finally {
+            guard.bulkhead.release();
+            guard.onResult(keyPrefix, probe, success, System.currentTimeMillis() - begin);
+        }
+    }
+
+    /**
+     * 判断前缀的熔断器是否处于打开状态(用于逻辑过期重建前的快速判断)
+     */
+    public boolean isOpen(String keyPrefix) {
+        Guard guard = guards.get(keyPrefix);
+        return guard != null && guard.openUntil > System.currentTimeMillis();
+    }
+
+    /**
+     * 熔断器的放行结果
+     */
+    private enum Admission {
+        //熔断打开，拒绝
+        REJECTED,
+        //熔断关闭，正常放行
+        ALLOWED,
+        //半开状态的探测请求，只有它的结果能关闭或重新打开熔断
+        PROBE
+    }
+
+    private class Guard {
+        private final Semaphore bulkhead;
+
+        //熔断打开的截止时间，0表示关闭
+        private volatile long openUntil;
+        //半开状态下是否已有探测请求
+        private final AtomicBoolean probing = new AtomicBoolean();
+
+        //当前统计窗口
+        private long windowStart = System.currentTimeMillis();
+        private int calls;
+        private int failures;
+
+        private Guard(int permits) {
+            this.bulkhead = new Semaphore(permits);
+        }
+
+        private Admission allowRequest() {
+            long until = openUntil;
+            if (until == 0) {
+                return Admission.ALLOWED;
+            }
+            if (until > System.currentTimeMillis()) {
+                return Admission.REJECTED;
+            }
+            //半开：只放行一个探测请求
+            return probing.compareAndSet(false, true) ? Admission.PROBE : Admission.REJECTED;
+        }
+
+        private void releaseProbe() {
+            probing.set(false);
+        }
+
+        private synchronized void onResult(String keyPrefix, boolean probe, boolean success, long costMillis) {
+            boolean bad = !success || costMillis >= slowCallMillis;
+            long now = System.currentTimeMillis();
+            if (!probe && openUntil != 0) {
+                //熔断打开之前就已经发出、在打开或半开期间才结束的调用，结果不再统计
+                return;
+            }
+            if (probe) {
+                //半开探测的结果
+                if (bad) {
+                    openUntil = now + openMillis;
+                } else {
+                    openUntil = 0;
+                    log.info("数据库回源熔断关闭，prefix:{}", keyPrefix);
+                }
+                resetWindow();
+                releaseProbe();
+                return;
+            }
+            if (now - windowStart > windowMillis) {
+                resetWindow();
+            }
+            calls++;
+            if (bad) {
+                failures++;
+            }
+            if (calls >= minimumCalls && (double) failures / calls >= failureRateThreshold) {
+                openUntil = now + openMillis;
+                log.warn("数据库回源熔断打开，prefix:{}，失败/慢调用:{}/{}", keyPrefix, failures, calls);
+                resetWindow();
+            }
+        }
+
+        private void resetWindow() {
+            windowStart = System.currentTimeMillis();
+            calls = 0;
+            failures = 0;
+        }
+    }
+}
@@ -0,0 +1,11 @@
+package com.hmdp.utils;
+
+/**
+ * 数据库回源被拒绝：熔断器打开或者舱壁并发已满
+ */
+public class DbFallbackRejectedException extends RuntimeException {
+
+    public DbFallbackRejectedException(String message) {
+        super(message);
+    }
+}
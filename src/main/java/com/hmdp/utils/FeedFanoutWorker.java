@@ -0,0 +1,327 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import com.hmdp.entity.Follow;
+import com.hmdp.service.IFollowService;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 笔记推送到粉丝收件箱的后台任务
+ * 1. 发布笔记时只记录任务就返回，推送在后台线程执行
+ * 2. 按tb_follow的主键分批(keyset)读取粉丝，每批的ZADD在一次pipeline中完成
+ * 3. 每批的进度(最后一个关注记录的id)和ZADD在同一个pipeline中写入redis的hash，
+ *    执行实例宕机后由其他实例或重启后从该位置继续，重复推送的ZADD是幂等的
+ * 4. 只推送给 feed:active 中的活跃用户，收件箱写入时截断到最大长度
+ * 5. 执行出错时任务保持running状态，释放锁后等待下次接管重试，累计出错达到上限才标记为failed
+ * 6. 推送数量通过 /actuator/metrics/feed.fanout.pushed 查看
+ */
+@Slf4j
+@Component
+public class FeedFanoutWorker {
+
+    public static final String STATUS_RUNNING = "running";
+    public static final String STATUS_DONE = "done";
+    public static final String STATUS_FAILED = "failed";
+
+    //执行锁的租期，执行中每批续期；超过租期没有续期视为执行实例已宕机，任务可以被接管
+    private static final long JOB_LEASE_SECONDS = 30;
+
+    //任务结束后进度的保留时间
+    private static final long JOB_STATE_TTL_HOURS = 24;
+
+    //任务执行出错的最大次数，达到后标记为failed不再重试
+    private static final int MAX_ATTEMPTS = 3;
+
+    private static final DefaultRedisScript<Long> UNLOCK_SCRIPT;
+    private static final DefaultRedisScript<Long> RENEW_LOCK_SCRIPT;
+
+    static {
+        UNLOCK_SCRIPT = new DefaultRedisScript<>();
+        UNLOCK_SCRIPT.setLocation(new ClassPathResource("unlock.lua"));
+        UNLOCK_SCRIPT.setResultType(Long.class);
+        RENEW_LOCK_SCRIPT = new DefaultRedisScript<>();
+        RENEW_LOCK_SCRIPT.setLocation(new ClassPathResource("renew_lock.lua"));
+        RENEW_LOCK_SCRIPT.setResultType(Long.class);
+    }
+
+    //本实例的标识，作为执行锁的值
+    private final String owner = UUID.randomUUID().toString(true);
+
+    //本实例已提交(排队或执行中)的任务，避免重复接管自己的任务
+    private final Set<String> localJobs = ConcurrentHashMap.newKeySet();
+
+    private ExecutorService executor;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private IFollowService followService;
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    @Value("${hmdp.feed.fanout.threads:2}")
+    private int threads;
+
+    @Value("${hmdp.feed.fanout.batch-size:1000}")
+    private int batchSize;
+
+    @Value("${hmdp.feed.inbox.max-size:1000}")
+    private int inboxMaxSize;
+
+    @PostConstruct
+    private void init() {
+        executor = Executors.newFixedThreadPool(threads);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        //中断正在执行的任务，任务保持running状态，锁过期后由其他实例或重启后继续
+        executor.shutdownNow();
+    }
+
+    /**
+     * 提交推送任务，立即返回
+     * @param authorId 作者id
+     * @param blogId 笔记id
+     * @param timestamp 发布时间(笔记create_time的毫秒值)，作为收件箱中的分数
+     */
+    public void submit(Long authorId, Long blogId, long timestamp) {
+        String jobId = blogId.toString();
+        String now = String.valueOf(System.currentTimeMillis());
+        Map<String, String> state = new HashMap<>();
+        state.put("authorId", authorId.toString());
+        state.put("blogId", jobId);
+        state.put("timestamp", String.valueOf(timestamp));
+        state.put("status", STATUS_RUNNING);
+        state.put("lastFollowId", "0");
+        state.put("pushed", "0");
+        state.put("attempts", "0");
+        state.put("createTime", now);
+        state.put("updateTime", now);
+        stringRedisTemplate.opsForHash().putAll(RedisConstants.FEED_FANOUT_JOB_KEY + jobId, state);
+        stringRedisTemplate.opsForSet().add(RedisConstants.FEED_FANOUT_JOBS_KEY, jobId);
+
+        //新任务一定能拿到锁
+        tryLock(jobId);
+        localJobs.add(jobId);
+        executor.submit(() -> run(jobId));
+    }
+
+    /**
+     * 查询任务进度
+     * @param blogId 笔记id
+     * @return 任务状态，不存在或已过期时返回空
+     */
+    public Map<Object, Object> getProgress(String blogId) {
+        return stringRedisTemplate.opsForHash().entries(RedisConstants.FEED_FANOUT_JOB_KEY + blogId);
+    }
+
+    /**
+     * 接管执行实例已宕机的任务(服务启动后也会立即执行一次)
+     */
+    @Scheduled(fixedDelay = JOB_LEASE_SECONDS * 1000)
+    public void resumeAbandoned() {
+        Set<String> jobIds = stringRedisTemplate.opsForSet().members(RedisConstants.FEED_FANOUT_JOBS_KEY);
+        if (jobIds == null) {
+            return;
+        }
+        for (String jobId : jobIds) {
+            if (localJobs.contains(jobId)) {
+                continue;
+            }
+            Map<Object, Object> entries = getProgress(jobId);
+            if (entries.isEmpty() || !STATUS_RUNNING.equals(entries.get("status"))) {
+                //任务已结束或状态已过期
+                stringRedisTemplate.opsForSet().remove(RedisConstants.FEED_FANOUT_JOBS_KEY, jobId);
+                continue;
+            }
+            if (!tryLock(jobId)) {
+                //仍有实例在执行
+                continue;
+            }
+            log.info("接管笔记推送任务，blogId:{}，已推送:{}", jobId, entries.get("pushed"));
+            localJobs.add(jobId);
+            executor.submit(() -> run(jobId));
+        }
+    }
+
+    /**
+     * 执行任务：从redis中保存的进度处继续
+     */
+    private void run(String jobId) {
+        try {
+            //排队期间锁可能已经过期并被其他实例接管
+            if (holdLock(jobId)) {
+                Map<Object, Object> state = getProgress(jobId);
+                if (STATUS_RUNNING.equals(state.get("status"))) {
+                    run(jobId, state);
+                }
+            }
+        } finally {
+            localJobs.remove(jobId);
+        }
+    }
+
+    private void run(String jobId, Map<Object, Object> state) {
+        String jobKey = RedisConstants.FEED_FANOUT_JOB_KEY + jobId;
+        String lockKey = RedisConstants.LOCK_FEED_FANOUT_KEY + jobId;
+        Long authorId = Long.valueOf((String) state.get("authorId"));
+        double timestamp = Double.parseDouble((String) state.get("timestamp"));
+        long lastFollowId = Long.parseLong((String) state.get("lastFollowId"));
+        long pushed = Long.parseLong((String) state.get("pushed"));
+        long start = System.currentTimeMillis();
+        long pushedBefore = pushed;
+        try {
+            while (true) {
+                if (Thread.currentThread().isInterrupted()) {
+                    //服务关闭，保留running状态等待接管
+                    return;
+                }
+                //select id, user_id from tb_follow where follow_user_id = ? and id > ? order by id limit ?
+                List<Follow> follows = followService.query()
+                        .select("id", "user_id")
+                        .eq("follow_user_id", authorId)
+                        .gt("id", lastFollowId)
+                        .orderByAsc("id")
+                        .last("limit " + batchSize)
+                        .list();
+                if (follows.isEmpty()) {
+                    break;
+                }
+                lastFollowId = follows.get(follows.size() - 1).getId();
+                //只推送给活跃用户，不活跃用户的收件箱已被清理，再次读取时从数据库重建
+                List<Follow> actives = filterActive(follows);
+                pushed += actives.size();
+
+                //续期执行锁，锁已被其他实例接管时停止，由接管的实例从已保存的进度继续
+                if (!renewLock(jobId)) {
+                    log.warn("笔记推送任务已被其他实例接管，blogId:{}", jobId);
+                    return;
+                }
+                //一次pipeline：推送本批粉丝的收件箱并截断到最大长度，保存进度
+                Map<String, String> progress = new HashMap<>();
+                progress.put("lastFollowId", String.valueOf(lastFollowId));
+                progress.put("pushed", String.valueOf(pushed));
+                progress.put("updateTime", String.valueOf(System.currentTimeMillis()));
+                stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                    StringRedisConnection conn = (StringRedisConnection) connection;
+                    for (Follow follow : actives) {
+                        String inboxKey = RedisConstants.FEED_KEY + follow.getUserId();
+                        conn.zAdd(inboxKey, timestamp, jobId);
+                        //ZREMRANGEBYRANK key 0 -(max+1) 只保留最新的max条
+                        conn.zRemRange(inboxKey, 0, -(inboxMaxSize + 1));
+                    }
+                    conn.hMSet(jobKey, progress);
+                    return null;
+                });
+                meterRegistry.counter("feed.fanout.pushed").increment(actives.size());
+
+                if (follows.size() < batchSize) {
+                    break;
+                }
+            }
+
+            finish(jobId, STATUS_DONE, null);
+            long cost = Math.max(1, System.currentTimeMillis() - start);
+            log.info("笔记推送完成，blogId:{}，推送粉丝数:{}，耗时{}ms，{}条/秒",
+                    jobId, pushed, cost, (pushed - pushedBefore) * 1000 / cost);
+        } catch (Exception e) {
+            fail(jobId, e);
+        } finally {
+            stringRedisTemplate.execute(UNLOCK_SCRIPT, Collections.singletonList(lockKey), owner);
+        }
+    }
+
+    /**
+     * 一次pipeline查询本批粉丝在 feed:active 中的分数，过滤出活跃用户
+     */
+    private List<Follow> filterActive(List<Follow> follows) {
+        List<Object> scores = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (Follow follow : follows) {
+                conn.zScore(RedisConstants.FEED_ACTIVE_KEY, follow.getUserId().toString());
+            }
+            return null;
+        });
+        List<Follow> actives = new ArrayList<>(follows.size());
+        for (int i = 0; i < follows.size(); i++) {
+            if (scores.get(i) != null) {
+                actives.add(follows.get(i));
+            }
+        }
+        return actives;
+    }
+
+    /**
+     * 执行出错：累加出错次数，未达到上限时保持running状态，释放锁后由resumeAbandoned重新接管，
+     * 从已保存的进度继续
+     */
+    private void fail(String jobId, Exception e) {
+        Long attempts = stringRedisTemplate.opsForHash()
+                .increment(RedisConstants.FEED_FANOUT_JOB_KEY + jobId, "attempts", 1);
+        if (attempts < MAX_ATTEMPTS) {
+            log.warn("笔记推送出错，等待重试，blogId:{}，第{}次", jobId, attempts, e);
+            stringRedisTemplate.opsForHash().put(RedisConstants.FEED_FANOUT_JOB_KEY + jobId, "error", String.valueOf(e.getMessage()));
+            return;
+        }
+        log.error("笔记推送失败，blogId:{}，已重试{}次", jobId, attempts, e);
+        finish(jobId, STATUS_FAILED, e.getMessage());
+    }
+
+    private void finish(String jobId, String status, String error) {
+        String jobKey = RedisConstants.FEED_FANOUT_JOB_KEY + jobId;
+        Map<String, String> state = new HashMap<>();
+        state.put("status", status);
+        state.put("updateTime", String.valueOf(System.currentTimeMillis()));
+        if (error != null) {
+            state.put("error", error);
+        }
+        stringRedisTemplate.opsForHash().putAll(jobKey, state);
+        stringRedisTemplate.expire(jobKey, JOB_STATE_TTL_HOURS, TimeUnit.HOURS);
+        stringRedisTemplate.opsForSet().remove(RedisConstants.FEED_FANOUT_JOBS_KEY, jobId);
+    }
+
+    /**
+     * 确认本实例持有执行锁：已持有则续期，否则尝试获取
+     */
+    private boolean holdLock(String jobId) {
+        return renewLock(jobId) || tryLock(jobId);
+    }
+
+    /**
+     * 续期执行锁：lua脚本中比较持有者后再EXPIRE，锁已过期并被其他实例获取时不续期
+     * @return 本实例是否仍持有锁
+     */
+    private boolean renewLock(String jobId) {
+        Long result = stringRedisTemplate.execute(RENEW_LOCK_SCRIPT,
+                Collections.singletonList(RedisConstants.LOCK_FEED_FANOUT_KEY + jobId),
+                owner, String.valueOf(JOB_LEASE_SECONDS));
+        return result != null && result == 1;
+    }
+
+    private boolean tryLock(String jobId) {
+        Boolean success = stringRedisTemplate.opsForValue()
+                .setIfAbsent(RedisConstants.LOCK_FEED_FANOUT_KEY + jobId, owner, JOB_LEASE_SECONDS, TimeUnit.SECONDS);
+        return Boolean.TRUE.equals(success);
+    }
+}
@@ -0,0 +1,70 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 清理不活跃用户的收件箱：feed:active 记录每个用户最近一次读取关注列表的时间，
+ * 超过不活跃阈值的用户删除收件箱并移出活跃集合，之后不再推送，再次读取时从数据库重建
+ */
+@Slf4j
+@Component
+public class FeedInboxSweeper {
+
+    //每批清理的用户数量
+    private static final long SWEEP_BATCH_SIZE = 500;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisHealthDetector redisHealth;
+
+    @Value("${hmdp.feed.inbox.inactive-days:30}")
+    private long inactiveDays;
+
+    @Scheduled(fixedDelayString = "${hmdp.feed.inbox.sweep-interval-millis:3600000}")
+    public void sweep() {
+        if (!redisHealth.isAvailable()) {
+            return;
+        }
+        long threshold = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(inactiveDays);
+        long removed = 0;
+        try {
+            while (true) {
+                //ZRANGEBYSCORE feed:active 0 threshold LIMIT 0 batch
+                Set<String> userIds = stringRedisTemplate.opsForZSet()
+                        .rangeByScore(RedisConstants.FEED_ACTIVE_KEY, 0, threshold, 0, SWEEP_BATCH_SIZE);
+                if (userIds == null || userIds.isEmpty()) {
+                    break;
+                }
+                //先删除收件箱再移出活跃集合，中途失败时下次继续清理
+                stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                    StringRedisConnection conn = (StringRedisConnection) connection;
+                    for (String userId : userIds) {
+                        conn.unlink(RedisConstants.FEED_KEY + userId);
+                    }
+                    conn.zRem(RedisConstants.FEED_ACTIVE_KEY, userIds.toArray(new String[0]));
+                    return null;
+                });
+                removed += userIds.size();
+            }
+        } catch (DataAccessException e) {
+            redisHealth.reportFailure(e);
+            log.warn("清理不活跃用户收件箱失败，{}", e.getMessage());
+        }
+        if (removed > 0) {
+            log.info("清理不活跃用户收件箱，数量:{}", removed);
+        }
+    }
+}
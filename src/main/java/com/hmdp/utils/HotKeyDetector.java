@@ -0,0 +1,133 @@
+package com.hmdp.utils;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 热点key探测器
+ * 对缓存访问按比例采样，计入一个周期性衰减(计数减半)的Count-Min Sketch，
+ * 估计值超过阈值的key进入候选集，每个周期用小顶堆选出top-K作为热点key
+ */
+@Component
+public class HotKeyDetector {
+
+    //Count-Min Sketch的行数(哈希函数个数)
+    private static final int DEPTH = 4;
+    //Count-Min Sketch每行的计数器个数，必须是2的幂
+    private static final int WIDTH = 1 << 12;
+    private static final int[] SEEDS = {0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F};
+
+    private final AtomicLongArray sketch = new AtomicLongArray(DEPTH * WIDTH);
+
+    //超过阈值的候选key -> 估计访问次数
+    private final Map<String, Long> candidates = new ConcurrentHashMap<>();
+
+    //当前的热点key，每个衰减周期整体替换
+    private volatile Map<String, Long> hotKeys = Collections.emptyMap();
+
+    @Value("${hmdp.cache.hot-key.sample-rate:0.1}")
+    private double sampleRate;
+
+    @Value("${hmdp.cache.hot-key.threshold:500}")
+    private long threshold;
+
+    @Value("${hmdp.cache.hot-key.top-k:50}")
+    private int topK;
+
+    /**
+     * 记录一次访问(按采样率采样)
+     * @param key 缓存key
+     */
+    public void record(String key) {
+        if (ThreadLocalRandom.current().nextDouble() >= sampleRate) {
+            return;
+        }
+        long min = Long.MAX_VALUE;
+        for (int i = 0; i < DEPTH; i++) {
+            min = Math.min(min, sketch.incrementAndGet(index(i, key)));
+        }
+        //还原为估计的真实访问次数
+        long estimate = (long) (min / sampleRate);
+        if (estimate >= threshold) {
+            candidates.put(key, estimate);
+        }
+    }
+
+    /**
+     * 判断是否是热点key
+     */
+    public boolean isHot(String key) {
+        return hotKeys.containsKey(key);
+    }
+
+    /**
+     * 查询当前的热点key，按访问次数从高到低排序
+     */
+    public List<HotKey> getHotKeys() {
+        List<HotKey> list = new ArrayList<>(hotKeys.size());
+        hotKeys.forEach((key, count) -> list.add(new HotKey(key, count)));
+        list.sort((o1, o2) -> Long.compare(o2.getCount(), o1.getCount()));
+        return list;
+    }
+
+    /**
+     * 周期性衰减：用小顶堆从候选集中选出top-K作为新的热点key，然后所有计数减半
+     */
+    @Scheduled(fixedDelayString = "${hmdp.cache.hot-key.window-millis:10000}")
+    public void decay() {
+        PriorityQueue<Map.Entry<String, Long>> heap = new PriorityQueue<>(topK + 1, Map.Entry.<String, Long>comparingByValue());
+        for (Map.Entry<String, Long> entry : candidates.entrySet()) {
+            heap.offer(entry);
+            if (heap.size() > topK) {
+                heap.poll();
+            }
+        }
+        Map<String, Long> hot = new HashMap<>(heap.size() * 2);
+        for (Map.Entry<String, Long> entry : heap) {
+            hot.put(entry.getKey(), entry.getValue());
+        }
+        hotKeys = hot;
+        candidates.clear();
+
+        //计数减半，让过去的访问逐渐失去权重
+        for (int i = 0; i < sketch.length(); i++) {
+            sketch.set(i, sketch.get(i) >> 1);
+        }
+    }
+
+    /**
+     * 每行使用不同种子的murmur3哈希，各行相互独立，
+     * 不能共用key.hashCode()，否则hashCode相同的key在每一行都冲突
+     */
+    private int index(int row, String key) {
+        int h = SEEDS[row];
+        for (int i = 0; i < key.length(); i++) {
+            int k = key.charAt(i) * 0xCC9E2D51;
+            k = Integer.rotateLeft(k, 15) * 0x1B873593;
+            h ^= k;
+            h = Integer.rotateLeft(h, 13) * 5 + 0xE6546B64;
+        }
+        h ^= key.length();
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return row * WIDTH + (h & (WIDTH - 1));
+    }
+
+    @Data
+    @AllArgsConstructor
+    public static class HotKey {
+        private String key;
+        private Long count;
+    }
+}
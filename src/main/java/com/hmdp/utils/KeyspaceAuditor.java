@@ -0,0 +1,269 @@
+package com.hmdp.utils;
+
+import com.hmdp.dto.KeyspaceReport;
+import com.hmdp.dto.KeyspaceReport.PrefixStats;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.ToDoubleFunction;
+import java.util.stream.Collectors;
+
+/**
+ * redis键空间审计：后台分批SCAN键空间，采样每个key的类型、编码、内存占用、过期时间和元素数量，
+ * 按RedisConstants中的前缀汇总，报告通过 /cache/keyspace 和 redis.keyspace.* 指标查看，
+ * 用于在触发内存淘汰之前发现没有过期时间、持续增长的key
+ */
+@Slf4j
+@Component
+public class KeyspaceAuditor {
+
+    //不属于任何已知前缀的key
+    private static final String OTHER_PREFIX = "other";
+
+    private static final DefaultRedisScript<List> AUDIT_SCRIPT;
+
+    static {
+        AUDIT_SCRIPT = new DefaultRedisScript<>();
+        AUDIT_SCRIPT.setLocation(new ClassPathResource("keyspace_audit.lua"));
+        AUDIT_SCRIPT.setResultType(List.class);
+    }
+
+    //RedisConstants中的key前缀，按长度降序，匹配最长的前缀
+    private static final List<String> PREFIXES = loadPrefixes();
+
+    //审计单独使用一个线程，不占用定时任务线程
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    private final AtomicBoolean running = new AtomicBoolean();
+
+    //最近一次的审计报告
+    private volatile KeyspaceReport report;
+
+    //已注册指标的前缀
+    private final Set<String> gaugePrefixes = new HashSet<>();
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisHealthDetector redisHealth;
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    @Value("${hmdp.redis.audit.enabled:true}")
+    private boolean enabled;
+
+    @Value("${hmdp.redis.audit.batch-size:100}")
+    private int batchSize;
+
+    @Value("${hmdp.redis.audit.max-keys:100000}")
+    private long maxKeys;
+
+    @Value("${hmdp.redis.audit.batch-interval-millis:10}")
+    private long batchIntervalMillis;
+
+    @Value("${hmdp.redis.audit.memory-samples:5}")
+    private int memorySamples;
+
+    @PreDestroy
+    private void destroy() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * 定时审计
+     */
+    @Scheduled(initialDelayString = "${hmdp.redis.audit.initial-delay-millis:60000}",
+            fixedDelayString = "${hmdp.redis.audit.interval-millis:3600000}")
+    public void scheduledAudit() {
+        if (enabled && redisHealth.isAvailable()) {
+            submit();
+        }
+    }
+
+    /**
+     * 提交一次审计
+     * @return 已有审计在执行时返回false
+     */
+    public boolean submit() {
+        if (!running.compareAndSet(false, true)) {
+            return false;
+        }
+        executor.submit(() -> {
+            try {
+                report = audit();
+                registerGauges(report);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Exception e) {
+                log.error("redis键空间审计失败", e);
+            } finally {
+                running.set(false);
+            }
+        });
+        return true;
+    }
+
+    /**
+     * 最近一次的审计报告
+     * @return 还没有完成过审计时返回null
+     */
+    public KeyspaceReport getReport() {
+        return report;
+    }
+
+    private KeyspaceReport audit() throws InterruptedException {
+        KeyspaceReport result = new KeyspaceReport();
+        result.setStartTime(System.currentTimeMillis());
+        Long dbSize = stringRedisTemplate.execute((RedisCallback<Long>) connection -> connection.dbSize());
+        result.setDbSize(dbSize == null ? 0L : dbSize);
+
+        Map<String, PrefixStats> stats = new HashMap<>();
+        String cursor = "0";
+        long scanned = 0;
+        do {
+            List<?> batch = stringRedisTemplate.execute(AUDIT_SCRIPT, Collections.emptyList(),
+                    cursor, String.valueOf(batchSize), String.valueOf(memorySamples));
+            cursor = String.valueOf(batch.get(0));
+            for (Object item : (List<?>) batch.get(1)) {
+                accumulate(stats, (List<?>) item);
+                scanned++;
+            }
+            if (batchIntervalMillis > 0) {
+                //批次之间休眠，避免审计本身占用redis
+                Thread.sleep(batchIntervalMillis);
+            }
+        } while (!"0".equals(cursor) && scanned < maxKeys);
+
+        boolean complete = "0".equals(cursor);
+        double scale = complete || scanned == 0 ? 1.0 : result.getDbSize() / (double) scanned;
+        for (PrefixStats s : stats.values()) {
+            s.setEstimatedKeys(Math.round(s.getKeys() * scale));
+            s.setEstimatedMemoryBytes(Math.round(s.getMemoryBytes() * scale));
+        }
+        List<PrefixStats> prefixes = new ArrayList<>(stats.values());
+        prefixes.sort(Comparator.comparing(PrefixStats::getMemoryBytes).reversed());
+
+        result.setScannedKeys(scanned);
+        result.setComplete(complete);
+        result.setScale(scale);
+        result.setPrefixes(prefixes);
+        result.setFinishTime(System.currentTimeMillis());
+        log.info("redis键空间审计完成，扫描{}个key，耗时{}ms", scanned, result.getFinishTime() - result.getStartTime());
+        return result;
+    }
+
+    /**
+     * 累加一个key的采样结果：{key, 类型, 编码, 内存, pttl, 元素数量}
+     */
+    private void accumulate(Map<String, PrefixStats> stats, List<?> item) {
+        String key = (String) item.get(0);
+        String type = (String) item.get(1);
+        String encoding = (String) item.get(2);
+        long memory = ((Number) item.get(3)).longValue();
+        long pttl = ((Number) item.get(4)).longValue();
+        long cardinality = ((Number) item.get(5)).longValue();
+
+        String prefix = matchPrefix(key);
+        PrefixStats s = stats.computeIfAbsent(prefix, p -> {
+            PrefixStats ps = new PrefixStats();
+            ps.setPrefix(p);
+            return ps;
+        });
+        s.setKeys(s.getKeys() + 1);
+        if (pttl == -1) {
+            //-1表示没有设置过期时间
+            s.setNoTtlKeys(s.getNoTtlKeys() + 1);
+        }
+        s.setMemoryBytes(s.getMemoryBytes() + memory);
+        if (memory > s.getMaxMemoryBytes()) {
+            s.setMaxMemoryBytes(memory);
+            s.setBiggestKey(key);
+        }
+        s.setTotalCardinality(s.getTotalCardinality() + cardinality);
+        s.setMaxCardinality(Math.max(s.getMaxCardinality(), cardinality));
+        s.getTypes().merge(type, 1L, Long::sum);
+        s.getEncodings().merge(encoding, 1L, Long::sum);
+    }
+
+    private String matchPrefix(String key) {
+        for (String prefix : PREFIXES) {
+            if (key.startsWith(prefix)) {
+                return prefix;
+            }
+        }
+        return OTHER_PREFIX;
+    }
+
+    /**
+     * 为新出现的前缀注册指标，指标值始终读取最近一次的报告
+     */
+    private synchronized void registerGauges(KeyspaceReport latest) {
+        for (PrefixStats s : latest.getPrefixes()) {
+            String prefix = s.getPrefix();
+            if (!gaugePrefixes.add(prefix)) {
+                continue;
+            }
+            gauge("redis.keyspace.keys", prefix, PrefixStats::getEstimatedKeys);
+            gauge("redis.keyspace.memory", prefix, PrefixStats::getEstimatedMemoryBytes);
+            gauge("redis.keyspace.no-ttl.keys", prefix, ps -> ps.getNoTtlKeys() * report.getScale());
+            gauge("redis.keyspace.cardinality.max", prefix, PrefixStats::getMaxCardinality);
+        }
+    }
+
+    private void gauge(String name, String prefix, ToDoubleFunction<PrefixStats> value) {
+        Gauge.builder(name, this, auditor -> {
+                    PrefixStats s = auditor.findStats(prefix);
+                    return s == null ? 0 : value.applyAsDouble(s);
+                })
+                .tag("prefix", prefix)
+                .register(meterRegistry);
+    }
+
+    private PrefixStats findStats(String prefix) {
+        KeyspaceReport current = report;
+        if (current == null) {
+            return null;
+        }
+        return current.getPrefixes().stream()
+                .filter(s -> s.getPrefix().equals(prefix))
+                .findFirst().orElse(null);
+    }
+
+    /**
+     * 读取RedisConstants中所有字符串常量作为key前缀
+     */
+    private static List<String> loadPrefixes() {
+        List<String> prefixes = new ArrayList<>();
+        for (Field field : RedisConstants.class.getFields()) {
+            if (Modifier.isStatic(field.getModifiers()) && field.getType() == String.class) {
+                try {
+                    prefixes.add((String) field.get(null));
+                } catch (IllegalAccessException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        }
+        return prefixes.stream()
+                .distinct()
+                .sorted(Comparator.comparingInt(String::length).reversed())
+                .collect(Collectors.toList());
+    }
+}
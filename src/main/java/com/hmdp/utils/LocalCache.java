@@ -0,0 +1,98 @@
+package com.hmdp.utils;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 有界、带过期时间的本地缓存
+ * 容量满时优先淘汰已过期的条目，仍然不足则随机淘汰一个条目
+ * @param <V> 缓存值类型
+ */
+public class LocalCache<V> {
+
+    private final Map<String, Entry<V>> map = new ConcurrentHashMap<>();
+
+    private final int maxSize;
+
+    public LocalCache(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * 查询缓存
+     * @param key 缓存key
+     * @return 缓存值，不存在或已过期返回null
+     */
+    public V get(String key) {
+        Entry<V> entry = map.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.expireAt < System.currentTimeMillis()) {
+            //已过期，顺手删除
+            map.remove(key, entry);
+            return null;
+        }
+        return entry.value;
+    }
+
+    /**
+     * 写入缓存
+     * @param key 缓存key
+     * @param value 缓存值
+     * @param ttlMillis 过期时间(毫秒)
+     */
+    public void put(String key, V value, long ttlMillis) {
+        if (map.size() >= maxSize && !map.containsKey(key)) {
+            evict();
+        }
+        map.put(key, new Entry<>(value, System.currentTimeMillis() + ttlMillis));
+    }
+
+    public void remove(String key) {
+        map.remove(key);
+    }
+
+    /**
+     * 删除指定前缀的所有条目
+     * @param prefix key前缀
+     */
+    public void removeByPrefix(String prefix) {
+        map.keySet().removeIf(key -> key.startsWith(prefix));
+    }
+
+    public void clear() {
+        map.clear();
+    }
+
+    public int size() {
+        return map.size();
+    }
+
+    /**
+     * 淘汰：先清理过期条目，仍然满则淘汰迭代到的第一个条目
+     */
+    private void evict() {
+        long now = System.currentTimeMillis();
+        map.values().removeIf(entry -> entry.expireAt < now);
+        if (map.size() < maxSize) {
+            return;
+        }
+        Iterator<String> it = map.keySet().iterator();
+        if (it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    private static class Entry<V> {
+        private final V value;
+        private final long expireAt;
+
+        private Entry(V value, long expireAt) {
+            this.value = value;
+            this.expireAt = expireAt;
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package com.hmdp.utils;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * 响应级短时缓存：标注在与用户无关的GET接口上，按请求路径和查询参数缓存返回的Result，
+ * 同时合并并发的相同请求，同一时刻只有一个请求真正执行
+ */
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface MicroCache {
+
+    /**
+     * 缓存时间(毫秒)，小于等于0时使用配置 hmdp.cache.micro.ttl-millis，最终限制在1~5秒之间
+     */
+    long ttlMillis() default 0;
+
+    /**
+     * 是否只对未登录用户生效(返回数据中包含当前用户相关字段的接口)
+     */
+    boolean anonymousOnly() default false;
+
+    /**
+     * 请求中带有这些参数时不走缓存(例如原始经纬度，几乎每个请求都不同，缓存只会挤掉其他接口的条目)
+     */
+    String[] bypassParams() default {};
+}
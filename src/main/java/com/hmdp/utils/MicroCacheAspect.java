@@ -0,0 +1,125 @@
+package com.hmdp.utils;
+
+import com.hmdp.dto.Result;
+import lombok.extern.slf4j.Slf4j;
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.aspectj.lang.annotation.Around;
+import org.aspectj.lang.annotation.Aspect;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import javax.servlet.http.HttpServletRequest;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 响应级短时缓存的实现：
+ * 1.命中本地缓存直接返回；
+ * 2.未命中时同一个key只放行一个请求执行，其余请求等待它的结果(请求合并)；
+ * 3.执行成功的结果缓存1~5秒，数据库的查询次数与访问量无关
+ */
+@Slf4j
+@Aspect
+@Component
+public class MicroCacheAspect {
+
+    private static final long MIN_TTL_MILLIS = 1000;
+    private static final long MAX_TTL_MILLIS = 5000;
+
+    @Value("${hmdp.cache.micro.ttl-millis:2000}")
+    private long defaultTtlMillis;
+
+    @Value("${hmdp.cache.micro.max-size:1000}")
+    private int maxSize;
+
+    @Resource
+    private CacheMetrics cacheMetrics;
+
+    private LocalCache<Result> cache;
+
+    //正在执行的请求，key -> 执行结果
+    private final Map<String, CompletableFuture<Result>> inFlight = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    private void init() {
+        cache = new LocalCache<>(maxSize);
+    }
+
+    @Around("@annotation(microCache)")
+    public Object around(ProceedingJoinPoint joinPoint, MicroCache microCache) throws Throwable {
+        ServletRequestAttributes attributes = (ServletRequestAttributes) RequestContextHolder.getRequestAttributes();
+        if (attributes == null || (microCache.anonymousOnly() && UserHolder.getUser() != null)) {
+            //不在请求上下文中，或者已登录用户访问与用户相关的接口，不走缓存
+            return joinPoint.proceed();
+        }
+        HttpServletRequest request = attributes.getRequest();
+        for (String param : microCache.bypassParams()) {
+            if (request.getParameter(param) != null) {
+                //请求参数几乎不会重复，不走缓存
+                return joinPoint.proceed();
+            }
+        }
+        String path = request.getRequestURI();
+        String key = buildKey(path, request.getParameterMap());
+
+        //1.查询本地缓存
+        Result cached = cache.get(key);
+        if (cached != null) {
+            cacheMetrics.record(path, CacheMetrics.HIT);
+            return cached;
+        }
+
+        //2.已有相同请求在执行，等待它的结果
+        CompletableFuture<Result> future = new CompletableFuture<>();
+        CompletableFuture<Result> running = inFlight.putIfAbsent(key, future);
+        if (running != null) {
+            cacheMetrics.record(path, CacheMetrics.COLLAPSED);
+            try {
+                return running.join();
+            } catch (CompletionException e) {
+                throw e.getCause();
+            }
+        }
+
+        //3.执行请求，成功的结果写入缓存
+        cacheMetrics.record(path, CacheMetrics.MISS);
+        try {
+            Result result = (Result) joinPoint.proceed();
+            if (result != null && Boolean.TRUE.equals(result.getSuccess())) {
+                cache.put(key, result, ttl(microCache));
+            }
+            future.complete(result);
+            return result;
+        } catch (Throwable e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, future);
+        }
+    }
+
+    /**
+     * 缓存key：请求路径 + 按参数名排序后的查询参数
+     */
+    private String buildKey(String path, Map<String, String[]> parameters) {
+        StringBuilder key = new StringBuilder(path);
+        char separator = '?';
+        for (Map.Entry<String, String[]> entry : new TreeMap<>(parameters).entrySet()) {
+            key.append(separator).append(entry.getKey()).append('=').append(String.join(",", entry.getValue()));
+            separator = '&';
+        }
+        return key.toString();
+    }
+
+    private long ttl(MicroCache microCache) {
+        long ttl = microCache.ttlMillis() > 0 ? microCache.ttlMillis() : defaultTtlMillis;
+        return Math.max(MIN_TTL_MILLIS, Math.min(MAX_TTL_MILLIS, ttl));
+    }
+}
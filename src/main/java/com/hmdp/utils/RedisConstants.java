@@ -7,19 +7,68 @@ public class RedisConstants {
     public static final Long LOGIN_USER_TTL = 36000L;
 
     public static final Long CACHE_NULL_TTL = 2L;
+    //缓存TTL随机抖动比例，打散同一批写入的key的过期时间
+    public static final double CACHE_TTL_JITTER_RATIO = 0.1;
+    //XFetch提前刷新系数，越大越倾向于提前刷新
+    public static final double CACHE_XFETCH_BETA = 1.0;
+    //未测得重建耗时时使用的默认值(毫秒)
+    public static final Long CACHE_XFETCH_DEFAULT_DELTA = 50L;
 
     public static final Long CACHE_SHOP_TTL = 30L;
     public static final String CACHE_SHOP_KEY = "cache:shop:";
 
+    //分桶存储模式下桶key的中缀：keyPrefix + "bucket:" + id / 桶大小
+    public static final String CACHE_BUCKET_INFIX = "bucket:";
+
+    //按前缀批量失效缓存的任务状态(hash)、进行中的任务集合、执行锁、本地缓存失效通知频道
+    public static final String CACHE_INVALIDATE_JOB_KEY = "invalidate:job:";
+    public static final String CACHE_INVALIDATE_JOBS_KEY = "invalidate:jobs";
+    public static final String LOCK_INVALIDATE_KEY = "lock:invalidate:";
+    public static final String CACHE_INVALIDATE_CHANNEL = "invalidate:local";
+
+    public static final Long CACHE_USER_TTL = 30L;
+    public static final String CACHE_USER_KEY = "cache:user:";
+
     public static final String CACHE_SHOP_TYPE_KEY = "cache:shopType:";
+    public static final String CACHE_SHOP_TYPE_VERSION_KEY = "cache:shopType:version";
+    public static final String SHOP_TYPE_CHANGED_CHANNEL = "cache:shopType:changed";
 
     public static final String LOCK_SHOP_KEY = "lock:shop:";
     public static final Long LOCK_SHOP_TTL = 10L;
 
     public static final String SECKILL_STOCK_KEY = "seckill:stock:";
+    //秒杀下单用户集合，在seckill.lua中拼接
+    public static final String SECKILL_ORDER_KEY = "seckill:order:";
+    //点赞相关的key按 笔记id % BLOG_LIKED_SHARDS 分片，后面拼接 {分片号}(hash tag)，由BlogLikeKeys生成
+    public static final int BLOG_LIKED_SHARDS = 16;
+    //笔记的点赞用户集合 blog:liked:{分片号}:笔记id
     public static final String BLOG_LIKED_KEY = "blog:liked:";
+    //尚未写回数据库的点赞数增量(hash：笔记id -> 增量)，以及正在写回的增量
+    public static final String BLOG_LIKED_DELTA_KEY = "blog:liked:delta:";
+    public static final String BLOG_LIKED_FLUSHING_KEY = "blog:liked:delta:flushing:";
+    //正在写回的增量的批次id，数据库中按(批次id, 笔记id)记录已写回的笔记，重复写回时跳过
+    public static final String BLOG_LIKED_FLUSH_ID_KEY = "blog:liked:delta:flushing:id:";
+    //笔记的点赞数(hash：笔记id -> 点赞数)，点赞时与增量一起原子增减，首次访问时从数据库 + 尚未写回的增量初始化
+    public static final String BLOG_LIKED_COUNT_KEY = "blog:liked:count:";
     public static final String FEED_KEY = "feed:";
+    //大V(粉丝数超过阈值的作者)的发件箱，以及大V集合，粉丝读取时合并关注的大V的发件箱
+    public static final String FEED_OUTBOX_KEY = "feed:outbox:";
+    public static final String FEED_BIG_V_KEY = "feed:bigv";
+    //作者的粉丝数，发布笔记时判断是否为大V；关注/取消关注时增减，过期后从数据库重新统计
+    public static final String FEED_FANS_KEY = "feed:fans:";
+    public static final Long FEED_FANS_TTL = 24L;
+    //用户最近一次读取关注列表的时间(zset)，只向活跃用户推送，不活跃用户的收件箱会被清理
+    public static final String FEED_ACTIVE_KEY = "feed:active";
+    //笔记推送任务的进度(hash)、进行中的任务集合、执行锁
+    public static final String FEED_FANOUT_JOB_KEY = "feed:fanout:job:";
+    public static final String FEED_FANOUT_JOBS_KEY = "feed:fanout:jobs";
+    public static final String LOCK_FEED_FANOUT_KEY = "lock:feed:fanout:";
     public static final String SHOP_GEO_KEY = "shop:geo:";
+    //全量重建GEO索引的执行锁，多实例之间互斥
+    public static final String LOCK_SHOP_GEO_REBUILD_KEY = "lock:shop:geo:rebuild";
+    //店铺新增或修改的通知频道，消息为店铺id，用于同步各实例的本地空间索引
+    public static final String SHOP_CHANGED_CHANNEL = "shop:changed";
     public static final String USER_SIGN_KEY = "sign:";
+    public static final String FOLLOWS_KEY = "follows:";
 
 }
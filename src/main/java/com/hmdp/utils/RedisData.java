@@ -8,4 +8,8 @@ import java.time.LocalDateTime;
 public class RedisData {
     private LocalDateTime expireTime;
     private Object data;
+    /**
+     * 最近一次缓存重建耗时(毫秒)，用于概率性提前刷新
+     */
+    private Long delta;
 }
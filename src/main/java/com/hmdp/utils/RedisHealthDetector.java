@@ -0,0 +1,154 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * redis健康探测
+ * 1. 定时PING，连续失败达到阈值(或业务调用上报的失败达到阈值)后标记为不可用，进入降级模式
+ * 2. 不可用期间连续PING成功达到阈值后恢复，恢复后的一段时间内仍然对数据库回源限流，
+ *    防止redis数据丢失时大量未命中同时打到数据库
+ * 3. 探测运行在独立的线程上，不与其他@Scheduled任务共用调度线程，
+ *    进入和退出降级模式不会被全量加载、清理等耗时任务或卡在redis超时的任务拖慢
+ */
+@Slf4j
+@Component
+public class RedisHealthDetector {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Value("${hmdp.redis.degrade.check-interval-millis:1000}")
+    private long checkIntervalMillis;
+
+    @Value("${hmdp.redis.degrade.failure-threshold:3}")
+    private int failureThreshold;
+
+    @Value("${hmdp.redis.degrade.success-threshold:3}")
+    private int successThreshold;
+
+    @Value("${hmdp.redis.degrade.recovery-millis:30000}")
+    private long recoveryMillis;
+
+    @Value("${hmdp.redis.degrade.fallback-permits-per-second:50}")
+    private int fallbackPermitsPerSecond;
+
+    private volatile boolean available = true;
+
+    //恢复后继续限流回源的截止时间
+    private volatile long recoverUntil;
+
+    private final AtomicInteger failures = new AtomicInteger();
+
+    private final AtomicInteger successes = new AtomicInteger();
+
+    //令牌桶：当前令牌数和上次补充时间
+    private double permits;
+    private long lastRefill = System.currentTimeMillis();
+
+    //探测专用的调度线程
+    private final ScheduledExecutorService checker = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "redis-health-check");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @PostConstruct
+    private void init() {
+        checker.scheduleWithFixedDelay(this::check, checkIntervalMillis, checkIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        checker.shutdownNow();
+    }
+
+    /**
+     * 定时探测redis
+     */
+    public void check() {
+        try {
+            stringRedisTemplate.execute((RedisCallback<String>) RedisConnection::ping);
+            onSuccess();
+        } catch (Exception e) {
+            onFailure(e);
+        }
+    }
+
+    /**
+     * 业务调用redis失败时上报
+     * @param e 异常
+     */
+    public void reportFailure(Exception e) {
+        onFailure(e);
+    }
+
+    public boolean isAvailable() {
+        return available;
+    }
+
+    /**
+     * redis不可用或者刚恢复时，数据库回源需要限流
+     */
+    public boolean isFallbackLimited() {
+        return !available || System.currentTimeMillis() < recoverUntil;
+    }
+
+    /**
+     * 获取一个数据库回源许可(令牌桶限流)
+     * @return 是否获取成功
+     */
+    public synchronized boolean tryAcquireFallbackPermit() {
+        long now = System.currentTimeMillis();
+        permits = Math.min(fallbackPermitsPerSecond, permits + (now - lastRefill) * fallbackPermitsPerSecond / 1000.0);
+        lastRefill = now;
+        if (permits < 1) {
+            return false;
+        }
+        permits--;
+        return true;
+    }
+
+    /**
+     * 依赖redis的写操作调用，redis不可用时快速失败
+     * @throws RedisUnavailableException redis不可用
+     */
+    public void ensureAvailable() {
+        if (!available) {
+            throw new RedisUnavailableException("redis不可用，拒绝依赖redis的写操作");
+        }
+    }
+
+    private void onSuccess() {
+        failures.set(0);
+        if (available) {
+            return;
+        }
+        if (successes.incrementAndGet() >= successThreshold) {
+            successes.set(0);
+            recoverUntil = System.currentTimeMillis() + recoveryMillis;
+            available = true;
+            log.info("redis已恢复，{}ms内继续限流数据库回源", recoveryMillis);
+        }
+    }
+
+    private void onFailure(Exception e) {
+        successes.set(0);
+        if (available && failures.incrementAndGet() >= failureThreshold) {
+            available = false;
+            log.error("redis不可用，进入降级模式", e);
+        }
+    }
+}
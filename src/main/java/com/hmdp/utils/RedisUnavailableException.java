@@ -0,0 +1,11 @@
+package com.hmdp.utils;
+
+/**
+ * redis不可用：依赖redis的写操作直接快速失败
+ */
+public class RedisUnavailableException extends RuntimeException {
+
+    public RedisUnavailableException(String message) {
+        super(message);
+    }
+}
@@ -3,6 +3,7 @@ package com.hmdp.utils;
 import cn.hutool.core.bean.BeanUtil;
 import cn.hutool.core.util.StrUtil;
 import com.hmdp.dto.UserDTO;
+import org.springframework.dao.DataAccessException;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.web.servlet.HandlerInterceptor;
 
@@ -16,8 +17,11 @@ public class RefreshTokenInterceptor implements HandlerInterceptor {
 
     private StringRedisTemplate stringRedisTemplate;
 
-    public RefreshTokenInterceptor(StringRedisTemplate stringRedisTemplate) {
+    private RedisHealthDetector redisHealthDetector;
+
+    public RefreshTokenInterceptor(StringRedisTemplate stringRedisTemplate, RedisHealthDetector redisHealthDetector) {
         this.stringRedisTemplate = stringRedisTemplate;
+        this.redisHealthDetector = redisHealthDetector;
     }
 
     /**
@@ -32,14 +36,20 @@ public class RefreshTokenInterceptor implements HandlerInterceptor {
         // 1.获取请求头中的token
         String token = request.getHeader("Authorization");
 
-        //判断token是否存在
-        if (StrUtil.isBlank(token)){
+        //判断token是否存在；redis不可用时按未登录放行，只读接口仍然可以访问
+        if (StrUtil.isBlank(token) || !redisHealthDetector.isAvailable()){
             return true;
         }
 
         //依据token，获取redis中的用户
         String tokenKey = RedisConstants.LOGIN_USER_KEY + token;
-        Map<Object, Object> userMap = stringRedisTemplate.opsForHash().entries(tokenKey);
+        Map<Object, Object> userMap;
+        try {
+            userMap = stringRedisTemplate.opsForHash().entries(tokenKey);
+        } catch (DataAccessException e) {
+            redisHealthDetector.reportFailure(e);
+            return true;
+        }
 
         //判断用户是否存在
         if (userMap.isEmpty()) {
@@ -53,7 +63,11 @@ public class RefreshTokenInterceptor implements HandlerInterceptor {
         UserHolder.saveUser(userDTO);
 
         //刷新redis的token有效期
-        stringRedisTemplate.expire(tokenKey, RedisConstants.LOGIN_USER_TTL, TimeUnit.MINUTES);
+        try {
+            stringRedisTemplate.expire(tokenKey, RedisConstants.LOGIN_USER_TTL, TimeUnit.MINUTES);
+        } catch (DataAccessException e) {
+            redisHealthDetector.reportFailure(e);
+        }
 
         //放行
         return true;
@@ -0,0 +1,416 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.Shop;
+import org.springframework.stereotype.Component;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 店铺的本地空间索引：按typeId划分，每个类型一个网格
+ * 1. 经纬度按geohash的方式切分成网格(经度、纬度各CELL_BITS位)，同一格子内的店铺在数组中连续存放(CSR)，
+ *    店铺id、经度、纬度分别存放在基本类型数组中，没有对象开销
+ * 2. 查询从中心格子开始一圈一圈向外扩展，维护一个大小为k的最大堆，剩余格子不可能更近时停止，
+ *    查询只使用线程本地的临时数组，几乎不分配对象
+ * 3. 网格不可变，店铺新增、修改时复制出新的网格整体替换(写少读多)，读不需要加锁
+ * 4. 全量加载时从beginLoad开始记录发生变更的店铺，load返回这些店铺，由调用方按最新数据重新应用，
+ *    避免读取数据库之后、替换网格之前提交的修改被旧数据覆盖
+ * 距离与redis GEO一致，使用相同地球半径的haversine公式
+ */
+@Component
+public class ShopGeoIndex {
+
+    //redis GEO使用的地球半径(米)
+    private static final double EARTH_RADIUS = 6372797.560856;
+
+    //经度、纬度各自的geohash位数，14位时格子约为 2.4km x 1.2km(赤道附近)
+    private static final int CELL_BITS = 14;
+    private static final double CELL_LON = 360.0 / (1 << CELL_BITS);
+    private static final double CELL_LAT = 180.0 / (1 << CELL_BITS);
+    //最多扩展的圈数，经度方向不超过一整圈，避免重复扫描同一个格子
+    private static final int MAX_RING = (1 << (CELL_BITS - 1)) - 1;
+    //一个格子纬度方向的高度(米)
+    private static final double CELL_LAT_METERS = Math.toRadians(CELL_LAT) * EARTH_RADIUS;
+    //格子对角线长度的上界(米)，经度方向取赤道处的宽度
+    private static final double MAX_CELL_DIAGONAL_METERS = Math.hypot(CELL_LAT_METERS, CELL_LAT_METERS * CELL_LON / CELL_LAT);
+
+    //typeId -> 网格
+    private final Map<Long, Grid> grids = new ConcurrentHashMap<>();
+
+    //shopId -> typeId，用于店铺修改类型时从旧网格中删除
+    private final Map<Long, Long> shopTypes = new ConcurrentHashMap<>();
+
+    private final ThreadLocal<Scratch> scratch = ThreadLocal.withInitial(Scratch::new);
+
+    private volatile boolean ready;
+
+    //全量加载期间发生变更的店铺id，为null表示没有在加载
+    private Set<Long> changedDuringLoad;
+
+    /**
+     * 开始全量加载：在读取数据库之前调用，之后的upsert/remove都会被记录
+     */
+    public synchronized void beginLoad() {
+        changedDuringLoad = new HashSet<>();
+    }
+
+    /**
+     * 放弃全量加载(读取数据库失败)
+     */
+    public synchronized void abortLoad() {
+        changedDuringLoad = null;
+    }
+
+    /**
+     * 全量加载，替换所有网格
+     * @param shops 店铺(只需要id、typeId、x、y)
+     * @return beginLoad之后发生变更的店铺id，调用方需要按最新数据重新应用
+     */
+    public synchronized Set<Long> load(Collection<Shop> shops) {
+        Map<Long, PointsBuilder> builders = new HashMap<>();
+        Map<Long, Long> types = new HashMap<>(shops.size());
+        for (Shop shop : shops) {
+            if (shop.getTypeId() == null || shop.getX() == null || shop.getY() == null) {
+                continue;
+            }
+            builders.computeIfAbsent(shop.getTypeId(), t -> new PointsBuilder())
+                    .add(shop.getId(), shop.getX(), shop.getY());
+            types.put(shop.getId(), shop.getTypeId());
+        }
+        Map<Long, Grid> loaded = new HashMap<>(builders.size());
+        builders.forEach((typeId, builder) -> loaded.put(typeId, builder.build()));
+
+        grids.keySet().retainAll(loaded.keySet());
+        grids.putAll(loaded);
+        shopTypes.clear();
+        shopTypes.putAll(types);
+        ready = true;
+
+        Set<Long> changed = changedDuringLoad == null ? Collections.emptySet() : changedDuringLoad;
+        changedDuringLoad = null;
+        return changed;
+    }
+
+    /**
+     * 新增或更新一个店铺的位置，类型变化时从旧类型的网格中删除
+     */
+    public synchronized void upsert(Shop shop) {
+        Long id = shop.getId();
+        recordChange(id);
+        Long oldType = shopTypes.get(id);
+        if (oldType != null && !oldType.equals(shop.getTypeId())) {
+            remove(id);
+        }
+        if (shop.getTypeId() == null || shop.getX() == null || shop.getY() == null) {
+            return;
+        }
+        Grid grid = grids.get(shop.getTypeId());
+        PointsBuilder builder = grid == null ? new PointsBuilder() : grid.toBuilder(id);
+        builder.add(id, shop.getX(), shop.getY());
+        grids.put(shop.getTypeId(), builder.build());
+        shopTypes.put(id, shop.getTypeId());
+    }
+
+    /**
+     * 删除一个店铺
+     */
+    public synchronized void remove(Long id) {
+        recordChange(id);
+        Long typeId = shopTypes.remove(id);
+        if (typeId == null) {
+            return;
+        }
+        Grid grid = grids.get(typeId);
+        if (grid != null) {
+            grids.put(typeId, grid.toBuilder(id).build());
+        }
+    }
+
+    private void recordChange(Long id) {
+        if (changedDuringLoad != null) {
+            changedDuringLoad.add(id);
+        }
+    }
+
+    /**
+     * 是否已完成全量加载
+     */
+    public boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * 查询距离(x, y)最近的k个店铺，只返回radius以内的，按距离升序
+     * 结果写入调用方的数组，查询本身不分配对象
+     * @param typeId 商铺类型
+     * @param x 经度
+     * @param y 纬度
+     * @param radius 半径(米)
+     * @param k 最多返回的数量
+     * @param outIds 返回的店铺id，长度至少为k
+     * @param outDistances 返回的距离(米)，长度至少为k
+     * @return 实际返回的数量
+     */
+    public int nearest(Long typeId, double x, double y, double radius, int k, long[] outIds, double[] outDistances) {
+        return nearest(typeId, x, y, radius, k, -1, -1, outIds, outDistances);
+    }
+
+    /**
+     * 游标查询：按(距离, id)升序，返回排在(afterDistance, afterId)之后的k个店铺
+     * 完全在afterDistance以内的格子直接跳过，深翻页只扫描上一页半径外的一圈
+     * @param afterDistance 上一页最后一个店铺的距离，第一页传-1
+     * @param afterId 上一页最后一个店铺的id，第一页传-1
+     * @return 实际返回的数量
+     */
+    public int nearest(Long typeId, double x, double y, double radius, int k,
+                       double afterDistance, long afterId, long[] outIds, double[] outDistances) {
+        Grid grid = grids.get(typeId);
+        if (grid == null || k <= 0) {
+            return 0;
+        }
+        Scratch s = scratch.get();
+        s.ensure(k);
+        int size = 0;
+
+        int cx = lonCell(x);
+        int cy = latCell(y);
+        //纬度越高，一个格子经度方向越窄，取两个方向中较窄的边作为每圈的最小距离
+        double cellMeters = Math.min(CELL_LAT_METERS, CELL_LAT_METERS * CELL_LON / CELL_LAT * Math.cos(Math.toRadians(y)));
+        int maxRing = cellMeters <= 0 ? MAX_RING : (int) Math.min(MAX_RING, Math.ceil(radius / cellMeters) + 1);
+        for (int ring = 0; ring <= maxRing; ring++) {
+            //第ring圈中的点距离中心至少(ring - 1)个格子
+            double ringMin = (ring - 1) * cellMeters;
+            if (ringMin > radius || (size == k && ringMin > s.heapDistances[0])) {
+                break;
+            }
+            //第ring圈中的点距离中心最多(ring + 1)个格子的对角线，全部在上一页以内时跳过
+            if ((ring + 1) * MAX_CELL_DIAGONAL_METERS < afterDistance) {
+                continue;
+            }
+            for (int dx = -ring; dx <= ring; dx++) {
+                for (int dy = -ring; dy <= ring; dy++) {
+                    if (Math.abs(dx) != ring && Math.abs(dy) != ring) {
+                        //只扫描这一圈的边上的格子
+                        continue;
+                    }
+                    int cell = grid.find(cellKey(wrapLon(cx + dx), cy + dy));
+                    if (cell < 0) {
+                        continue;
+                    }
+                    for (int i = grid.cellStart[cell], end = grid.cellStart[cell + 1]; i < end; i++) {
+                        double d = distance(x, y, grid.lons[i], grid.lats[i]);
+                        long id = grid.ids[i];
+                        if (d > radius || !greater(d, id, afterDistance, afterId)) {
+                            continue;
+                        }
+                        if (size < k) {
+                            s.set(size, d, id);
+                            siftUp(s, size++);
+                        } else if (greater(s.heapDistances[0], s.heapIds[0], d, id)) {
+                            s.set(0, d, id);
+                            siftDown(s, 0, size);
+                        }
+                    }
+                }
+            }
+        }
+
+        //堆排序：依次把最远的放到末尾，得到升序结果
+        for (int n = size - 1; n >= 0; n--) {
+            outIds[n] = s.heapIds[0];
+            outDistances[n] = s.heapDistances[0];
+            s.set(0, s.heapDistances[n], s.heapIds[n]);
+            siftDown(s, 0, n);
+        }
+        return size;
+    }
+
+    /**
+     * haversine公式计算两点距离(米)，与redis GEODIST一致
+     */
+    public static double distance(double lon1, double lat1, double lon2, double lat2) {
+        double lat1r = Math.toRadians(lat1);
+        double lat2r = Math.toRadians(lat2);
+        double u = Math.sin((lat2r - lat1r) / 2);
+        double v = Math.sin(Math.toRadians(lon2 - lon1) / 2);
+        return 2.0 * EARTH_RADIUS * Math.asin(Math.sqrt(u * u + Math.cos(lat1r) * Math.cos(lat2r) * v * v));
+    }
+
+    private static int lonCell(double lon) {
+        return Math.min((1 << CELL_BITS) - 1, (int) ((lon + 180) / CELL_LON));
+    }
+
+    private static int latCell(double lat) {
+        return Math.min((1 << CELL_BITS) - 1, (int) ((lat + 90) / CELL_LAT));
+    }
+
+    private static int wrapLon(int cx) {
+        int n = 1 << CELL_BITS;
+        return ((cx % n) + n) % n;
+    }
+
+    private static long cellKey(int cx, int cy) {
+        return ((long) cx << 32) | (cy & 0xffffffffL);
+    }
+
+    /**
+     * 按(距离, id)比较，距离相同时id大的排在后面，保证游标翻页的顺序稳定
+     */
+    private static boolean greater(double d1, long id1, double d2, long id2) {
+        return d1 > d2 || (d1 == d2 && id1 > id2);
+    }
+
+    //最大堆：堆顶是当前第k近(最远)的点
+    private static void siftUp(Scratch s, int i) {
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (!s.greater(i, parent)) {
+                break;
+            }
+            s.swap(i, parent);
+            i = parent;
+        }
+    }
+
+    private static void siftDown(Scratch s, int i, int size) {
+        while (true) {
+            int left = 2 * i + 1;
+            if (left >= size) {
+                break;
+            }
+            int largest = left + 1 < size && s.greater(left + 1, left) ? left + 1 : left;
+            if (!s.greater(largest, i)) {
+                break;
+            }
+            s.swap(i, largest);
+            i = largest;
+        }
+    }
+
+    /**
+     * 不可变的网格：点按格子排序后连续存放，cellKeys有序，cellStart[i] ~ cellStart[i + 1]是第i个格子的点
+     */
+    private static final class Grid {
+        private final long[] cellKeys;
+        private final int[] cellStart;
+        private final long[] ids;
+        private final double[] lons;
+        private final double[] lats;
+
+        private Grid(long[] cellKeys, int[] cellStart, long[] ids, double[] lons, double[] lats) {
+            this.cellKeys = cellKeys;
+            this.cellStart = cellStart;
+            this.ids = ids;
+            this.lons = lons;
+            this.lats = lats;
+        }
+
+        private int find(long cellKey) {
+            return Arrays.binarySearch(cellKeys, cellKey);
+        }
+
+        /**
+         * 复制出除了excludeId之外的所有点
+         */
+        private PointsBuilder toBuilder(long excludeId) {
+            PointsBuilder builder = new PointsBuilder();
+            for (int i = 0; i < ids.length; i++) {
+                if (ids[i] != excludeId) {
+                    builder.add(ids[i], lons[i], lats[i]);
+                }
+            }
+            return builder;
+        }
+    }
+
+    /**
+     * 构建网格：收集点，按格子排序后生成CSR结构
+     */
+    private static final class PointsBuilder {
+        private long[] ids = new long[16];
+        private double[] lons = new double[16];
+        private double[] lats = new double[16];
+        private int size;
+
+        private void add(long id, double lon, double lat) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+                lons = Arrays.copyOf(lons, size * 2);
+                lats = Arrays.copyOf(lats, size * 2);
+            }
+            ids[size] = id;
+            lons[size] = lon;
+            lats[size] = lat;
+            size++;
+        }
+
+        private Grid build() {
+            //按格子排序
+            long[] keys = new long[size];
+            Integer[] order = new Integer[size];
+            for (int i = 0; i < size; i++) {
+                keys[i] = cellKey(lonCell(lons[i]), latCell(lats[i]));
+                order[i] = i;
+            }
+            Arrays.sort(order, (a, b) -> Long.compare(keys[a], keys[b]));
+
+            long[] sortedIds = new long[size];
+            double[] sortedLons = new double[size];
+            double[] sortedLats = new double[size];
+            long[] cellKeys = new long[size];
+            int[] cellStart = new int[size + 1];
+            int cells = 0;
+            for (int i = 0; i < size; i++) {
+                int p = order[i];
+                sortedIds[i] = ids[p];
+                sortedLons[i] = lons[p];
+                sortedLats[i] = lats[p];
+                if (cells == 0 || cellKeys[cells - 1] != keys[p]) {
+                    cellKeys[cells] = keys[p];
+                    cellStart[cells] = i;
+                    cells++;
+                }
+            }
+            cellStart[cells] = size;
+            return new Grid(Arrays.copyOf(cellKeys, cells), Arrays.copyOf(cellStart, cells + 1),
+                    sortedIds, sortedLons, sortedLats);
+        }
+    }
+
+    /**
+     * 线程本地的查询临时数组，容量不足时扩容
+     */
+    private static final class Scratch {
+        private double[] heapDistances = new double[64];
+        private long[] heapIds = new long[64];
+
+        private void ensure(int k) {
+            if (heapDistances.length < k) {
+                heapDistances = new double[k];
+                heapIds = new long[k];
+            }
+        }
+
+        private void set(int i, double distance, long id) {
+            heapDistances[i] = distance;
+            heapIds[i] = id;
+        }
+
+        private boolean greater(int i, int j) {
+            return ShopGeoIndex.greater(heapDistances[i], heapIds[i], heapDistances[j], heapIds[j]);
+        }
+
+        private void swap(int i, int j) {
+            double distance = heapDistances[i];
+            long id = heapIds[i];
+            set(i, heapDistances[j], heapIds[j]);
+            set(j, distance, id);
+        }
+    }
+}
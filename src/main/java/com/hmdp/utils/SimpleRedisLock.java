@@ -1,9 +1,12 @@
 package com.hmdp.utils;
 
 import cn.hutool.core.lang.UUID;
+import org.springframework.core.io.ClassPathResource;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
 
 
+import java.util.Collections;
 import java.util.concurrent.TimeUnit;
 import javax.annotation.Resource;
 
@@ -15,6 +18,14 @@ public class SimpleRedisLock implements ILock{
 
     private StringRedisTemplate stringRedisTemplate; //通过构造函数传入
 
+    //导入释放锁的lua脚本
+    private static final DefaultRedisScript<Long> UNLOCK_SCRIPT;
+    static {
+        UNLOCK_SCRIPT = new DefaultRedisScript<>();
+        UNLOCK_SCRIPT.setLocation(new ClassPathResource("unlock.lua"));
+        UNLOCK_SCRIPT.setResultType(Long.class);
+    }
+
     public SimpleRedisLock(String name, StringRedisTemplate stringRedisTemplate){
         this.name = name;
         this.stringRedisTemplate = stringRedisTemplate;
@@ -36,17 +47,12 @@ public class SimpleRedisLock implements ILock{
     }
 
     /**
-     * 释放锁
+     * 释放锁：通过lua脚本原子地比较标识并删除，避免判断之后、删除之前锁过期被其他线程获取
      */
     public void unLock() {
         //获取线程标识
         String threadId = ID_prefix + Thread.currentThread().getId();
-        //获取锁中的标识
-        String id = stringRedisTemplate.opsForValue().get(key_prefix + name);
-        //判断标识是否一致
-        if (threadId.equals(id)){
-            //释放锁
-            stringRedisTemplate.delete(key_prefix + name);
-        }
+        //判断标识是否一致，一致则释放锁
+        stringRedisTemplate.execute(UNLOCK_SCRIPT, Collections.singletonList(key_prefix + name), threadId);
     }
 }
@@ -5,4 +5,8 @@ public class SystemConstants {
     public static final String USER_NICK_NAME_PREFIX = "user_";
     public static final int DEFAULT_PAGE_SIZE = 5;
     public static final int MAX_PAGE_SIZE = 10;
+    //关注的人的笔记每次滚动查询的数量
+    public static final int FEED_PAGE_SIZE = 2;
+    //附近商铺的查询半径(米)
+    public static final double NEARBY_SHOP_RADIUS = 5000;
 }
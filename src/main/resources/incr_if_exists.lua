@@ -0,0 +1,5 @@
+--key存在时才累加，不存在时返回nil，避免过期后累加出一个没有过期时间的错误计数
+if (redis.call("exists", KEYS[1]) == 1) then
+    return redis.call("incrby", KEYS[1], ARGV[1])
+end
+return nil
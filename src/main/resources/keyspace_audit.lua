@@ -0,0 +1,29 @@
+--分批采样键空间：SCAN一批key，返回每个key的类型、编码、内存占用、剩余过期时间和元素数量
+--ARGV[1]:游标 ARGV[2]:每批扫描数量 ARGV[3]:MEMORY USAGE对集合类型的采样数量
+local result = redis.call("scan", ARGV[1], "count", ARGV[2])
+local items = {}
+for _, key in ipairs(result[2]) do
+    local keyType = redis.call("type", key)["ok"]
+    --SCAN之后已过期或被删除的key类型为none，跳过
+    if keyType ~= "none" then
+        local card = 0
+        if keyType == "string" then
+            card = redis.call("strlen", key)
+        elseif keyType == "list" then
+            card = redis.call("llen", key)
+        elseif keyType == "hash" then
+            card = redis.call("hlen", key)
+        elseif keyType == "set" then
+            card = redis.call("scard", key)
+        elseif keyType == "zset" then
+            card = redis.call("zcard", key)
+        elseif keyType == "stream" then
+            card = redis.call("xlen", key)
+        end
+        local encoding = redis.call("object", "encoding", key) or ""
+        local memory = redis.call("memory", "usage", key, "samples", ARGV[3]) or 0
+        local pttl = redis.call("pttl", key)
+        items[#items + 1] = {key, keyType, encoding, memory, pttl, card}
+    end
+end
+return {result[1], items}
@@ -0,0 +1,31 @@
+--1.参数列表
+--1.1.笔记的点赞用户集合key
+local likedKey = KEYS[1]
+--1.2.点赞数增量hash的key(三个key使用同一个hash tag，集群中在同一个slot)
+local deltaKey = KEYS[2]
+--1.3.点赞数hash的key
+local countKey = KEYS[3]
+--1.4.用户id
+local userId = ARGV[1]
+--1.5.点赞时间
+local now = ARGV[2]
+--1.6.笔记id
+local blogId = ARGV[3]
+
+--2.脚本逻辑
+--2.1.点赞数尚未初始化，不做任何修改，由调用方从数据库初始化后重试
+if (redis.call("hexists", countKey, blogId) == 0) then
+    return nil
+end
+--2.2.判断用户是否已经点赞
+if (redis.call("zscore", likedKey, userId) == false) then
+    --2.3.未点赞：保存用户，点赞数增量+1，点赞数+1
+    redis.call("zadd", likedKey, now, userId)
+    redis.call("hincrby", deltaKey, blogId, 1)
+    return {1, redis.call("hincrby", countKey, blogId, 1)}
+end
+--2.4.已点赞：移除用户，点赞数增量-1，点赞数-1
+redis.call("zrem", likedKey, userId)
+redis.call("hincrby", deltaKey, blogId, -1)
+--3.返回新的点赞状态和点赞数
+return {0, redis.call("hincrby", countKey, blogId, -1)}
@@ -0,0 +1,7 @@
+--比较锁中的标识与当前持有者的标识是否一致
+if (redis.call("get", KEYS[1]) == ARGV[1]) then
+    --一致，续期
+    return redis.call("expire", KEYS[1], ARGV[2])
+end
+--不一致，说明锁已经过期并被其他线程/实例获取，不能续期
+return 0
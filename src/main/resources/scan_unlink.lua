@@ -0,0 +1,16 @@
+--按前缀分批删除缓存：一次SCAN + UNLINK，返回下一次的游标和本批删除的数量
+--ARGV[1]:游标 ARGV[2]:匹配模式 ARGV[3]:每批扫描数量
+
+--脚本中SCAN之后还有写命令，redis 5之前需要按效果复制
+if redis.replicate_commands then
+    redis.replicate_commands()
+end
+
+local result = redis.call("scan", ARGV[1], "match", ARGV[2], "count", ARGV[3])
+local keys = result[2]
+local deleted = 0
+if #keys > 0 then
+    --UNLINK在后台线程释放内存，不阻塞主线程
+    deleted = redis.call("unlink", unpack(keys))
+end
+return {result[1], deleted}
@@ -0,0 +1,7 @@
+--比较锁中的标识与当前持有者的标识是否一致
+if (redis.call("get", KEYS[1]) == ARGV[1]) then
+    --一致，释放锁
+    return redis.call("del", KEYS[1])
+end
+--不一致，说明锁已经过期并被其他线程/实例获取，不能释放
+return 0
@@ -3,18 +3,28 @@ package com.hmdp;
 import com.hmdp.entity.Shop;
 import com.hmdp.service.impl.ShopServiceImpl;
 import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.RedisConstants;
 import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.ShopGeoIndex;
+import com.hmdp.utils.SystemConstants;
 import org.junit.jupiter.api.Test;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.geo.Circle;
+import org.springframework.data.geo.Distance;
+import org.springframework.data.geo.GeoResult;
+import org.springframework.data.geo.GeoResults;
 import org.springframework.data.geo.Point;
 import org.springframework.data.redis.connection.RedisGeoCommands;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
 
 import javax.annotation.Resource;
 
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -23,6 +33,10 @@ import java.util.stream.Collectors;
 
 import static com.hmdp.utils.RedisConstants.CACHE_SHOP_KEY;
 import static com.hmdp.utils.RedisConstants.CACHE_SHOP_TTL;
+import static com.hmdp.utils.RedisConstants.SHOP_GEO_KEY;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 @SpringBootTest
 class HmDianPingApplicationTests {
@@ -39,6 +53,9 @@ class HmDianPingApplicationTests {
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private ShopGeoIndex shopGeoIndex;
+
     //一个包含500个线程的固定大小线程池
     private ExecutorService es = Executors.newFixedThreadPool(500); //500个线程
 
@@ -100,4 +117,121 @@ class HmDianPingApplicationTests {
         }
     }
 
+    /**
+     * 分桶存储：同样1000条店铺数据分别按独立key和hash分桶写入，两种方式都能原样读回，
+     * 分桶后所有数据落在同一个桶key中，占用的内存不超过独立key
+     * 分桶的内存优势需要redis配置 hash-max-listpack-entries >= 1000、hash-max-listpack-value >= 1024
+     */
+    @Test
+    void testPackedMemoryUsage() {
+        Shop shop = shopService.getById(1L);
+        String plainPrefix = "bench:shop:";
+        String packedPrefix = "bench:packed:";
+        int count = 1000;
+        List<String> plainKeys = new ArrayList<>(count);
+        //默认桶大小1000，全部落在0号桶
+        String bucketKey = packedPrefix + RedisConstants.CACHE_BUCKET_INFIX + 0;
+        try {
+            for (long id = 0; id < count; id++) {
+                plainKeys.add(plainPrefix + id);
+                cacheClient.setWithLogicalExpire(plainPrefix + id, shop, CACHE_SHOP_TTL, TimeUnit.MINUTES);
+                cacheClient.setPacked(packedPrefix, id, shop, CACHE_SHOP_TTL, TimeUnit.MINUTES);
+            }
+            assertEquals(count, stringRedisTemplate.opsForHash().size(bucketKey).intValue());
+
+            //读回时不允许回源数据库，必须命中刚写入的数据
+            for (long id = 0; id < count; id++) {
+                Shop plain = cacheClient.queryWithLogicalExpire(plainPrefix, id, Shop.class, this::failOnFallback, CACHE_SHOP_TTL, TimeUnit.MINUTES);
+                Shop packed = cacheClient.queryPacked(packedPrefix, id, Shop.class, this::failOnFallback, CACHE_SHOP_TTL, TimeUnit.MINUTES);
+                assertSameShop(shop, plain);
+                assertSameShop(shop, packed);
+            }
+
+            long plain = 0;
+            for (String key : plainKeys) {
+                plain += memoryUsage(key);
+            }
+            long packed = memoryUsage(bucketKey);
+            assertTrue(packed > 0 && packed <= plain, "分桶占用 " + packed + " 字节，独立key占用 " + plain + " 字节");
+        } finally {
+            plainKeys.add(bucketKey);
+            stringRedisTemplate.delete(plainKeys);
+        }
+    }
+
+    /**
+     * 附近商铺查询：本地空间索引与redis GEO执行同样的查询，返回的店铺和顺序一致
+     * 距离相差不超过GEO_DISTANCE_TOLERANCE(redis按geohash量化坐标)，距离在误差内相等的店铺允许交换顺序
+     */
+    @Test
+    void testGeoIndexVsRedis() {
+        //以数据库为准同时重建redis GEO和本地索引
+        assertTrue(shopService.rebuildShopGeo().getSuccess());
+        shopService.loadShopGeoIndex();
+        Long typeId = 1L;
+        int rounds = 200;
+        int k = SystemConstants.DEFAULT_PAGE_SIZE * 4;
+        //以店铺数据所在区域为中心随机生成查询坐标
+        Random random = new Random(42);
+        long[] ids = new long[k];
+        double[] distances = new double[k];
+        for (int i = 0; i < rounds; i++) {
+            double x = 120.15 + (random.nextDouble() - 0.5) * 0.1;
+            double y = 30.30 + (random.nextDouble() - 0.5) * 0.1;
+            int found = shopGeoIndex.nearest(typeId, x, y, SystemConstants.NEARBY_SHOP_RADIUS, k, ids, distances);
+
+            GeoResults<RedisGeoCommands.GeoLocation<String>> results = stringRedisTemplate.opsForGeo().radius(
+                    SHOP_GEO_KEY + typeId,
+                    new Circle(new Point(x, y), new Distance(SystemConstants.NEARBY_SHOP_RADIUS, RedisGeoCommands.DistanceUnit.METERS)),
+                    RedisGeoCommands.GeoRadiusCommandArgs.newGeoRadiusArgs().includeDistance().sortAscending().limit(k));
+            List<GeoResult<RedisGeoCommands.GeoLocation<String>>> expected = results == null ? new ArrayList<>() : results.getContent();
+
+            assertEquals(expected.size(), found, "查询坐标 " + x + "," + y);
+            for (int j = 0; j < found; j++) {
+                double expectedDistance = expected.get(j).getDistance().getValue();
+                assertEquals(expectedDistance, distances[j], GEO_DISTANCE_TOLERANCE, "查询坐标 " + x + "," + y + " 第" + j + "个");
+                long expectedId = Long.parseLong(expected.get(j).getContent().getName());
+                if (expectedId != ids[j]) {
+                    //只有距离在误差内相等时才允许顺序不同
+                    assertEquals(expectedDistance, distanceOf(expected, ids[j]), GEO_DISTANCE_TOLERANCE,
+                            "查询坐标 " + x + "," + y + " 第" + j + "个店铺不一致");
+                }
+            }
+        }
+    }
+
+    //本地索引与redis GEO的距离允许的误差(米)
+    private static final double GEO_DISTANCE_TOLERANCE = 1.0;
+
+    private static double distanceOf(List<GeoResult<RedisGeoCommands.GeoLocation<String>>> results, long id) {
+        for (GeoResult<RedisGeoCommands.GeoLocation<String>> result : results) {
+            if (Long.parseLong(result.getContent().getName()) == id) {
+                return result.getDistance().getValue();
+            }
+        }
+        throw new AssertionError("redis GEO结果中没有店铺 " + id);
+    }
+
+    private Shop failOnFallback(Long id) {
+        throw new AssertionError("缓存未命中，不应回源数据库：" + id);
+    }
+
+    private static void assertSameShop(Shop expected, Shop actual) {
+        assertNotNull(actual);
+        assertEquals(expected.getId(), actual.getId());
+        assertEquals(expected.getName(), actual.getName());
+        assertEquals(expected.getTypeId(), actual.getTypeId());
+        assertEquals(expected.getX(), actual.getX());
+        assertEquals(expected.getY(), actual.getY());
+    }
+
+    private long memoryUsage(String key) {
+        Object usage = stringRedisTemplate.execute((RedisCallback<Object>) connection ->
+                connection.execute("MEMORY", bytes("USAGE"), bytes(key), bytes("SAMPLES"), bytes("0")));
+        return usage == null ? 0 : (Long) usage;
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
 }